@@ -0,0 +1,102 @@
+package org.meveo.elastic;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.entity.ContentType;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Request entity of a document whose <code>data</code> field is the base64 content of a file. <br>
+ * The file is encoded while it is written to the connection, so it is never loaded in memory.
+ */
+public class AttachmentEntity extends AbstractHttpEntity {
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final File file;
+    private final byte[] prefix;
+
+    /**
+     * @param file     the file to send
+     * @param metadata other fields of the document
+     */
+    public AttachmentEntity(File file, ObjectNode metadata) {
+        this.file = file;
+
+        String fields = metadata.toString();
+        fields = fields.substring(0, fields.length() - 1);
+        if (metadata.size() > 0) {
+            fields += ",";
+        }
+        this.prefix = (fields + "\"data\":\"").getBytes(StandardCharsets.UTF_8);
+
+        setContentType(ContentType.APPLICATION_JSON.toString());
+        setChunked(true);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        throw new UnsupportedOperationException("Attachment entity can only be written");
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException {
+        outstream.write(prefix);
+
+        try (var input = new FileInputStream(file);
+                var encoder = Base64.getEncoder().wrap(new NonClosingOutputStream(outstream))) {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = input.read(buffer)) != -1) {
+                encoder.write(buffer, 0, read);
+            }
+        }
+
+        outstream.write(new byte[] { '"', '}' });
+        outstream.flush();
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+
+    /**
+     * Closing the base64 encoder writes the padding, but must not close the connection stream
+     */
+    private static class NonClosingOutputStream extends FilterOutputStream {
+
+        public NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+}
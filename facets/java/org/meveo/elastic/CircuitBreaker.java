@@ -0,0 +1,78 @@
+package org.meveo.elastic;
+
+import java.io.IOException;
+
+/**
+ * Circuit breaker of an elastic node. <br>
+ * After a number of consecutive failures, requests to the node are rejected without being sent during a given time.
+ * Then a single request is let through : the circuit closes again if it succeeds, or stays open otherwise.
+ */
+public class CircuitBreaker {
+
+    private final String node;
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private int consecutiveFailures = 0;
+    private long openedAt = -1;
+    private boolean probing = false;
+
+    /**
+     * @param node             the node, used in error messages
+     * @param failureThreshold number of consecutive failures opening the circuit
+     * @param openMillis       time during which requests are rejected once the circuit is open
+     */
+    public CircuitBreaker(String node, int failureThreshold, long openMillis) {
+        this.node = node;
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * Checks whether a request can be sent to the node
+     * 
+     * @throws CircuitBreakerOpenException if the circuit is open
+     */
+    public synchronized void acquire() throws CircuitBreakerOpenException {
+        if (openedAt < 0) {
+            return;
+        }
+        if (probing || System.currentTimeMillis() - openedAt < openMillis) {
+            throw new CircuitBreakerOpenException(node);
+        }
+        probing = true;
+    }
+
+    public synchronized void onSuccess() {
+        consecutiveFailures = 0;
+        openedAt = -1;
+        probing = false;
+    }
+
+    public synchronized void onFailure() {
+        probing = false;
+        if (++consecutiveFailures >= failureThreshold) {
+            openedAt = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * Ends an attempt that failed before reaching the node, without counting it
+     */
+    public synchronized void cancel() {
+        probing = false;
+    }
+
+    public synchronized boolean isOpen() {
+        return openedAt >= 0;
+    }
+
+    public static class CircuitBreakerOpenException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public CircuitBreakerOpenException(String node) {
+            super("Circuit breaker open for elastic node " + node);
+        }
+    }
+}
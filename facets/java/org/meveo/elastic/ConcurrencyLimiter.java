@@ -0,0 +1,222 @@
+package org.meveo.elastic;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Adaptive limit of the concurrent requests sent to elastic (AIMD). <br>
+ * The limit grows by one request per limit of successful requests, and is reduced by a fixed ratio when a
+ * request is rejected because the cluster is overloaded, or when its latency exceeds the tolerated multiple
+ * of the lowest latency observed for its kind of request. It is reduced at most once per round trip : responses
+ * to requests sent before the last reduction do not reduce it again. <br>
+ * Searches may use the whole limit and are admitted first, while writes may only use a share of it,
+ * so bulk indexing can not starve interactive searches.
+ */
+public class ConcurrencyLimiter {
+
+    public static enum Priority {
+        SEARCH, WRITE
+    }
+
+    private static final double DECREASE_RATIO = 0.9;
+
+    /**
+     * Number of samples after which the lowest latency is measured again, to follow the changes of the cluster
+     */
+    private static final int LATENCY_WINDOW = 1000;
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final double writeShare;
+    private final double latencyTolerance;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+
+    private double limit;
+    private final int[] inFlight = new int[Priority.values().length];
+    private final int[] waiting = new int[Priority.values().length];
+
+    /**
+     * Lowest latencies, by kind of request
+     */
+    private final Map<String, Baseline> baselines = new HashMap<>();
+
+    /**
+     * Incremented at each reduction of the limit
+     */
+    private long decreases = 0;
+
+    /**
+     * @param initialLimit     initial number of concurrent requests
+     * @param minLimit         lowest limit
+     * @param maxLimit         highest limit
+     * @param writeShare       share of the limit that writes may use
+     * @param latencyTolerance multiple of the lowest latency above which the cluster is considered overloaded
+     */
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, double writeShare, double latencyTolerance) {
+        this.limit = initialLimit;
+        this.minLimit = minLimit;
+        this.maxLimit = maxLimit;
+        this.writeShare = writeShare;
+        this.latencyTolerance = latencyTolerance;
+    }
+
+    /**
+     * Waits until a request of the given priority can be sent
+     *
+     * @param kind          kind of request, whose latencies are compared with each other
+     * @param timeoutMillis maximum waiting time
+     * @return the permit, to release once the response is consumed
+     * @throws LimitExceededException if the request could not be admitted in time
+     */
+    public Permit acquire(Priority priority, String kind, long timeoutMillis) throws IOException {
+        long remaining = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        lock.lock();
+        try {
+            waiting[priority.ordinal()]++;
+            try {
+                while (!canAcquire(priority)) {
+                    if (remaining <= 0) {
+                        throw new LimitExceededException(priority, getLimit());
+                    }
+                    remaining = released.awaitNanos(remaining);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to send elastic request");
+            } finally {
+                waiting[priority.ordinal()]--;
+            }
+            inFlight[priority.ordinal()]++;
+            return new Permit(priority, kind, decreases);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getLimit() {
+        lock.lock();
+        try {
+            return (int) limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getInFlight(Priority priority) {
+        lock.lock();
+        try {
+            return inFlight[priority.ordinal()];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getQueueDepth(Priority priority) {
+        lock.lock();
+        try {
+            return waiting[priority.ordinal()];
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean canAcquire(Priority priority) {
+        int total = inFlight[Priority.SEARCH.ordinal()] + inFlight[Priority.WRITE.ordinal()];
+        if (total >= (int) limit) {
+            return false;
+        }
+        if (priority == Priority.WRITE) {
+            int writeLimit = Math.max(1, (int) (limit * writeShare));
+            return inFlight[Priority.WRITE.ordinal()] < writeLimit && waiting[Priority.SEARCH.ordinal()] == 0;
+        }
+        return true;
+    }
+
+    private void release(Permit permit, boolean overloaded, boolean sample) {
+        long latencyMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - permit.startedAt);
+        lock.lock();
+        try {
+            inFlight[permit.priority.ordinal()]--;
+
+            if (sample) {
+                var baseline = baselines.computeIfAbsent(permit.kind, kind -> new Baseline());
+                if (baseline.samples++ % LATENCY_WINDOW == 0 || latencyMs < baseline.lowestLatency) {
+                    baseline.lowestLatency = Math.max(1, latencyMs);
+                }
+
+                if (overloaded || latencyMs > latencyTolerance * baseline.lowestLatency) {
+                    // Responses to the requests sent before the last reduction already reflect it
+                    if (permit.decreases == decreases) {
+                        limit = Math.max(minLimit, limit * DECREASE_RATIO);
+                        decreases++;
+                    }
+                } else {
+                    limit = Math.min(maxLimit, limit + 1 / limit);
+                }
+            }
+
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static class Baseline {
+        private long lowestLatency;
+        private int samples;
+    }
+
+    /**
+     * Admission of a request, held until its response is consumed. Releasing it more than once has no effect.
+     */
+    public class Permit {
+
+        private final Priority priority;
+        private final String kind;
+        private final long decreases;
+        private final long startedAt = System.nanoTime();
+        private boolean released = false;
+
+        private Permit(Priority priority, String kind, long decreases) {
+            this.priority = priority;
+            this.kind = kind;
+            this.decreases = decreases;
+        }
+
+        /**
+         * @param overloaded whether the cluster rejected the request because of its load
+         */
+        public synchronized void release(boolean overloaded) {
+            if (!released) {
+                released = true;
+                ConcurrencyLimiter.this.release(this, overloaded, true);
+            }
+        }
+
+        /**
+         * Releases a permit whose request was not sent or failed without response, without adapting the limit
+         */
+        public synchronized void cancel() {
+            if (!released) {
+                released = true;
+                ConcurrencyLimiter.this.release(this, false, false);
+            }
+        }
+    }
+
+    public static class LimitExceededException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public LimitExceededException(Priority priority, int limit) {
+            super("Timed out waiting to send " + priority + " request to elastic, concurrency limit is " + limit);
+        }
+    }
+}
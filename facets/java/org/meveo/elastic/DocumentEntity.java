@@ -0,0 +1,84 @@
+package org.meveo.elastic;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+
+/**
+ * Request entity writing the values of an entity directly to the connection, with lower-cased field names. <br>
+ * No intermediate map or string is created : the generator writes in the recycled buffers of the Jackson factory.
+ */
+public class DocumentEntity extends AbstractHttpEntity {
+
+    private final Map<String, Object> values;
+    private final WireFormat wireFormat;
+    private final boolean upsert;
+
+    public DocumentEntity(Map<String, Object> values, WireFormat wireFormat) {
+        this(values, wireFormat, false);
+    }
+
+    private DocumentEntity(Map<String, Object> values, WireFormat wireFormat, boolean upsert) {
+        this.values = values;
+        this.wireFormat = wireFormat;
+        this.upsert = upsert;
+
+        setContentType(wireFormat.getContentType().toString());
+        setChunked(true);
+    }
+
+    /**
+     * @return the body of an <code>_update</code> request setting the given fields, and creating the document if it does not exist. 
+     *         The other fields of the document are kept
+     */
+    public static DocumentEntity upsert(Map<String, Object> values, WireFormat wireFormat) {
+        return new DocumentEntity(values, wireFormat, true);
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return true;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        throw new UnsupportedOperationException("Document entity can only be written");
+    }
+
+    @Override
+    public void writeTo(OutputStream outstream) throws IOException {
+        try (JsonGenerator generator = wireFormat.getMapper().getFactory().createGenerator(outstream)) {
+            generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            if (upsert) {
+                generator.writeStartObject();
+                generator.writeFieldName("doc");
+            }
+            generator.writeStartObject();
+            for (var entry : values.entrySet()) {
+                generator.writeFieldName(FieldNames.of(entry.getKey()));
+                generator.writeObject(entry.getValue());
+            }
+            generator.writeEndObject();
+            if (upsert) {
+                generator.writeBooleanField("doc_as_upsert", true);
+                generator.writeEndObject();
+            }
+        }
+        outstream.flush();
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return false;
+    }
+}
@@ -0,0 +1,388 @@
+package org.meveo.elastic;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.meveo.admin.exception.BusinessException;
+import org.meveo.admin.util.pagination.PaginationConfiguration;
+import org.meveo.api.dto.response.PagingAndFiltering.SortOrder;
+import org.meveo.commons.utils.ParamBean;
+import org.meveo.commons.utils.ParamBeanFactory;
+import org.meveo.model.crm.CustomFieldTemplate;
+import org.meveo.model.customEntities.CustomEntityTemplate;
+import org.meveo.model.persistence.DBStorageType;
+import org.meveo.model.persistence.JacksonUtil;
+import org.meveo.model.storage.IStorageConfiguration;
+import org.meveo.model.storage.Repository;
+import org.meveo.persistence.StorageImpl;
+import org.meveo.persistence.StorageImplProvider;
+import org.meveo.persistence.StorageQuery;
+import org.meveo.service.crm.impl.CustomFieldTemplateService;
+import org.meveo.service.custom.CustomEntityTemplateService;
+import org.meveo.service.script.Script;
+import org.meveo.service.storage.RepositoryService;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Copies the instances of a CET held in another storage of the repository (SQL, Neo4j ...) into its elastic index. <br>
+ * The instances are split into slices of uuids that are read in parallel and sent with the <code>_bulk</code> API.
+ * Each page of a slice starts after the last uuid of the previous one, so pages do not shift when instances are
+ * created or deleted during the copy. The last uuid copied by each slice is saved in the <code>mv-backfill-checkpoints</code>
+ * index after each page, so that a new execution resumes where the previous one stopped. Bulk requests go through the 
+ * client retries and concurrency limit, so the job slows down when the cluster rejects writes.
+ */
+public class ElasticBackfillScript extends Script {
+
+    private static Logger LOG = LoggerFactory.getLogger(ElasticBackfillScript.class);
+
+    private static final String CHECKPOINTS_INDEX = "mv-backfill-checkpoints";
+
+    private static final String ELASTIC = "ELASTIC";
+
+    private static final int DEFAULT_SLICES = 8;
+
+    private static final int DEFAULT_PAGE_SIZE = 1000;
+
+    private CustomEntityTemplateService cetService = getCDIBean(CustomEntityTemplateService.class);
+
+    private CustomFieldTemplateService cftService = getCDIBean(CustomFieldTemplateService.class);
+
+    private RepositoryService repositoryService = getCDIBean(RepositoryService.class);
+
+    private StorageImplProvider storageImplProvider = getCDIBean(StorageImplProvider.class);
+
+    private ParamBeanFactory paramBeanFactory = getCDIBean(ParamBeanFactory.class);
+
+    private String cetCode;
+
+    private String repositoryCode;
+
+    /**
+     * Code of the storage type to read, e.g. <code>SQL</code> or <code>NEO4J</code>
+     */
+    private String sourceStorage;
+
+    private Integer slices = DEFAULT_SLICES;
+
+    private Integer pageSize = DEFAULT_PAGE_SIZE;
+
+    /**
+     * Whether to ignore the checkpoints of a previous execution
+     */
+    private Boolean restart = false;
+
+    private String result;
+
+    public void setCetCode(String cetCode) {
+        this.cetCode = cetCode;
+    }
+
+    public void setRepositoryCode(String repositoryCode) {
+        this.repositoryCode = repositoryCode;
+    }
+
+    public void setSourceStorage(String sourceStorage) {
+        this.sourceStorage = sourceStorage;
+    }
+
+    public void setSlices(Integer slices) {
+        this.slices = slices;
+    }
+
+    public void setPageSize(Integer pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    public void setRestart(Boolean restart) {
+        this.restart = restart;
+    }
+
+    public String getResult() {
+        return result;
+    }
+
+    @Override
+    public void execute(Map<String, Object> parameters) throws BusinessException {
+        super.execute(parameters);
+
+        CustomEntityTemplate cet = cetService.findByCode(cetCode);
+        if (cet == null) {
+            throw new BusinessException("CET " + cetCode + " does not exist");
+        }
+        Repository repository = repositoryService.findByCode(repositoryCode);
+        if (repository == null) {
+            throw new BusinessException("Repository " + repositoryCode + " does not exist");
+        }
+
+        IStorageConfiguration sourceConf = getStorageConfiguration(repository, sourceStorage);
+        IStorageConfiguration elasticConf = getStorageConfiguration(repository, ELASTIC);
+        StorageImpl source = storageImplProvider.findImpl(storageType(sourceStorage));
+
+        ParamBean paramBean = paramBeanFactory.getInstance();
+        var client = new ElasticRestClient(elasticConf.getProtocol() + "://" + elasticConf.getHostname(), elasticConf.getPort(),
+            elasticConf.getCredential().getUsername(), elasticConf.getCredential().getPassword(),
+            ElasticClientSettings.load(paramBean, elasticConf.getCode()));
+
+        try {
+            var backfill = new Backfill(client, source, sourceConf, cet, paramBean.getProperty("elasticsearch.routing." + cet.getCode(), null));
+            result = backfill.run();
+        } finally {
+            client.close();
+        }
+    }
+
+    private static IStorageConfiguration getStorageConfiguration(Repository repository, String storageType) throws BusinessException {
+        List<? extends IStorageConfiguration> confs = repository.getStorageConfigurations(storageType(storageType));
+        if (confs == null || confs.isEmpty()) {
+            throw new BusinessException("Repository " + repository.getCode() + " has no " + storageType + " storage configuration");
+        }
+        return confs.get(0);
+    }
+
+    private static DBStorageType storageType(String code) {
+        DBStorageType dbStorageType = new DBStorageType();
+        dbStorageType.setCode(code);
+        return dbStorageType;
+    }
+
+    /**
+     * State of an execution
+     */
+    private class Backfill {
+
+        private final ElasticRestClient client;
+        private final StorageImpl source;
+        private final IStorageConfiguration sourceConf;
+        private final CustomEntityTemplate cet;
+        private final String routingField;
+        private final String index;
+        private final List<String> fields;
+
+        private final AtomicLong indexed = new AtomicLong();
+        private long total;
+        private long startedAt;
+
+        private Backfill(ElasticRestClient client, StorageImpl source, IStorageConfiguration sourceConf, CustomEntityTemplate cet, String routingField) {
+            this.client = client;
+            this.source = source;
+            this.sourceConf = sourceConf;
+            this.cet = cet;
+            this.routingField = routingField == null || routingField.isBlank() ? null : routingField;
+            this.index = cet.getCode().toLowerCase();
+            Map<String, CustomFieldTemplate> cfts = cftService.findByAppliesTo(cet.getAppliesTo());
+            this.fields = new ArrayList<>(cfts.keySet());
+        }
+
+        private String run() throws BusinessException {
+            Integer count = source.count(sourceConf, cet, null);
+            total = count == null ? 0 : count;
+            startedAt = System.currentTimeMillis();
+            LOG.info("Backfill of {} from {} : {} instances in {} slices", cet.getCode(), sourceStorage, total, slices);
+
+            // Refreshing the index during the copy would only slow it down
+            String refreshInterval = getRefreshInterval();
+            setRefreshInterval("-1");
+
+            ExecutorService executor = Executors.newFixedThreadPool(slices);
+            try {
+                List<CompletableFuture<Void>> futures = new ArrayList<>();
+                for (int slice = 0; slice < slices; slice++) {
+                    int number = slice;
+                    futures.add(CompletableFuture.runAsync(() -> {
+                        try {
+                            copySlice(number);
+                        } catch (BusinessException e) {
+                            throw new CompletionException(e);
+                        }
+                    }, executor));
+                }
+                CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+            } catch (CompletionException e) {
+                throw new BusinessException("Backfill of " + cet.getCode() + " failed, it will resume from the last checkpoint", e.getCause());
+            } finally {
+                executor.shutdown();
+                try {
+                    setRefreshInterval(refreshInterval);
+                } catch (BusinessException e) {
+                    // Must not hide the failure of the copy
+                    LOG.error("Failed to restore the refresh interval of {} to {}", index, refreshInterval == null ? "default" : refreshInterval, e);
+                }
+                WriteGenerations.increment(index);
+            }
+
+            String summary = String.format("Backfill of %s from %s : %d instances copied in %d s (%.0f docs/s)",
+                cet.getCode(), sourceStorage, indexed.get(), (System.currentTimeMillis() - startedAt) / 1000, throughput());
+            LOG.info(summary);
+            return summary;
+        }
+
+        /**
+         * @return the lowest uuid of the slice, null for the first one. As uuids are random hexadecimal strings,
+         *         the slices evenly split the range of their first four characters
+         */
+        private String lowerBound(int slice) {
+            return slice == 0 ? null : String.format("%04x", slice * 0x10000L / slices);
+        }
+
+        private void copySlice(int slice) throws BusinessException {
+            String checkpointId = index + "_" + sourceStorage.toLowerCase() + "_uuid_" + slices + "_" + slice;
+            String from = lowerBound(slice);
+            // The last slice also copies the uuids above the hexadecimal range
+            String to = slice == slices - 1 ? null : lowerBound(slice + 1);
+
+            String after = null;
+            JsonNode checkpoint = Boolean.TRUE.equals(restart) ? null : readCheckpoint(checkpointId);
+            if (checkpoint != null) {
+                if (checkpoint.path("done").asBoolean()) {
+                    LOG.info("Slice {} of {} already copied", slice, cet.getCode());
+                    return;
+                }
+                after = checkpoint.path("after").textValue();
+            }
+
+            while (true) {
+                // The range filter includes its bound : one more row, as the last copied instance is read again
+                int rows = after == null ? pageSize : pageSize + 1;
+                List<Map<String, Object>> page = readPage(after == null ? from : after, to, rows);
+                if (page == null || page.isEmpty()) {
+                    break;
+                }
+
+                var bulkRequest = new ElasticBulkRequest();
+                for (var row : page) {
+                    String uuid = (String) row.get("uuid");
+                    if (!uuid.equals(after)) {
+                        bulkRequest.index(index, uuid, getRouting(row), toDocument(row));
+                    }
+                }
+                if (!bulkRequest.isEmpty()) {
+                    client.bulk(bulkRequest, RefreshPolicy.FALSE);
+                }
+
+                after = (String) page.get(page.size() - 1).get("uuid");
+                writeCheckpoint(checkpointId, slice, after, false);
+
+                long copied = indexed.addAndGet(bulkRequest.size());
+                LOG.info("Backfill of {} : {} / {} instances ({} docs/s)", cet.getCode(), copied, total, String.format("%.0f", throughput()));
+
+                if (page.size() < rows) {
+                    break;
+                }
+            }
+
+            writeCheckpoint(checkpointId, slice, after, true);
+        }
+
+        /**
+         * @param from lowest uuid to read, null for no lower bound
+         * @param to   highest uuid to read, null for no upper bound
+         */
+        private List<Map<String, Object>> readPage(String from, String to, int rows) throws BusinessException {
+            Map<String, Object> filters = new HashMap<>();
+            if (from != null) {
+                filters.put("fromRange uuid", from);
+            }
+            if (to != null) {
+                filters.put("toRange uuid", to);
+            }
+
+            StorageQuery query = new StorageQuery();
+            query.setCet(cet);
+            query.setStorageConfiguration(sourceConf);
+            query.setFetchFields(fields);
+            query.setFilters(filters);
+            // Ordered by uuid, so that the next page starts after the last uuid of this one
+            query.setPaginationConfiguration(new PaginationConfiguration(0, rows, filters, null, fields, "uuid", SortOrder.ASCENDING));
+            try {
+                return source.find(query);
+            } catch (Exception e) {
+                throw new BusinessException("Failed to read " + cet.getCode() + " from " + sourceStorage, e);
+            }
+        }
+
+        private Map<String, Object> toDocument(Map<String, Object> row) {
+            Map<String, Object> document = new LinkedHashMap<>();
+            row.forEach((key, value) -> {
+                if (!key.equals("uuid") && value != null) {
+                    document.put(FieldNames.lowerCase(key), value);
+                }
+            });
+            return document;
+        }
+
+        private String getRouting(Map<String, Object> row) {
+            if (routingField == null) {
+                return null;
+            }
+            Object value = row.get(routingField);
+            return value == null ? null : String.valueOf(value);
+        }
+
+        private double throughput() {
+            long elapsed = Math.max(1, System.currentTimeMillis() - startedAt);
+            return indexed.get() * 1000.0 / elapsed;
+        }
+
+        private JsonNode readCheckpoint(String id) throws BusinessException {
+            var request = client.get("/%s/_doc/%s", CHECKPOINTS_INDEX, id);
+            JsonNode json = client.execute(request, response -> {
+                if (response.getStatusLine().getStatusCode() == 404) {
+                    return null;
+                }
+                return client.readTree(response);
+            }, "Failed to read backfill checkpoint " + id);
+            return json == null ? null : json.get("_source");
+        }
+
+        /**
+         * @param after last uuid copied by the slice, null if none
+         */
+        private void writeCheckpoint(String id, int slice, String after, boolean done) throws BusinessException {
+            ObjectNode checkpoint = JacksonUtil.OBJECT_MAPPER.createObjectNode()
+                .put("cet", cet.getCode())
+                .put("source", sourceStorage)
+                .put("slice", slice)
+                .put("after", after)
+                .put("done", done)
+                .put("updated", System.currentTimeMillis());
+
+            var request = client.put("/%s/_doc/%s", CHECKPOINTS_INDEX, id);
+            client.setBody(request, checkpoint.toString());
+            int status = client.execute(request, response -> response.getStatusLine().getStatusCode(), "Failed to save backfill checkpoint " + id);
+            if (status >= 300) {
+                throw new BusinessException("Failed to save backfill checkpoint " + id + ", status " + status);
+            }
+        }
+
+        private String getRefreshInterval() throws BusinessException {
+            var request = client.get("/%s/_settings/index.refresh_interval", index);
+            JsonNode json = client.execute(request, client::readTree, "Failed to read settings of " + index);
+            var interval = json.path(index).path("settings").path("index").path("refresh_interval");
+            return interval.isMissingNode() ? null : interval.asText();
+        }
+
+        /**
+         * @param refreshInterval the interval, null for the elastic default
+         */
+        private void setRefreshInterval(String refreshInterval) throws BusinessException {
+            ObjectNode settings = JacksonUtil.OBJECT_MAPPER.createObjectNode();
+            settings.putObject("index").put("refresh_interval", refreshInterval);
+
+            var request = client.put("/%s/_settings", index);
+            client.setBody(request, settings.toString());
+            client.execute(request, null, "Failed to update settings of " + index);
+        }
+    }
+}
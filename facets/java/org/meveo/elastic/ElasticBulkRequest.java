@@ -0,0 +1,142 @@
+package org.meveo.elastic;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.meveo.model.persistence.JacksonUtil;
+
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Accumulates write operations to be sent as a single <code>_bulk</code> request.
+ */
+public class ElasticBulkRequest {
+
+    private final List<Operation> operations = new ArrayList<>();
+
+    public ElasticBulkRequest index(String index, String id, Object source) {
+        return index(index, id, null, source);
+    }
+
+    /**
+     * @param routing routing key of the document, null to route by id
+     */
+    public ElasticBulkRequest index(String index, String id, String routing, Object source) {
+        operations.add(new Operation("index", index, id, routing, source));
+        return this;
+    }
+
+    public ElasticBulkRequest create(String index, String id, Object source) {
+        operations.add(new Operation("create", index, id, source));
+        return this;
+    }
+
+    /**
+     * @param body the partial update body, either <code>{"doc": ...}</code> or <code>{"script": ...}</code>
+     */
+    public ElasticBulkRequest update(String index, String id, Object body) {
+        return update(index, id, null, body);
+    }
+
+    public ElasticBulkRequest update(String index, String id, String routing, Object body) {
+        operations.add(new Operation("update", index, id, routing, body));
+        return this;
+    }
+
+    public ElasticBulkRequest delete(String index, String id) {
+        return delete(index, id, null);
+    }
+
+    public ElasticBulkRequest delete(String index, String id, String routing) {
+        operations.add(new Operation("delete", index, id, routing, null));
+        return this;
+    }
+
+    public ElasticBulkRequest add(Operation operation) {
+        operations.add(operation);
+        return this;
+    }
+
+    public List<Operation> getOperations() {
+        return Collections.unmodifiableList(operations);
+    }
+
+    public int size() {
+        return operations.size();
+    }
+
+    public boolean isEmpty() {
+        return operations.isEmpty();
+    }
+
+    public void clear() {
+        operations.clear();
+    }
+
+    /**
+     * @return the NDJSON body of the request, each line terminated by a new line as required by elastic
+     */
+    public String toNdJson() {
+        var builder = new StringBuilder();
+        for (var operation : operations) {
+            operation.appendTo(builder);
+        }
+        return builder.toString();
+    }
+
+    public static class Operation {
+        private final String action;
+        private final String index;
+        private final String id;
+        private final String routing;
+        private final Object source;
+
+        public Operation(String action, String index, String id, Object source) {
+            this(action, index, id, null, source);
+        }
+
+        public Operation(String action, String index, String id, String routing, Object source) {
+            this.action = action;
+            this.index = index;
+            this.id = id;
+            this.routing = routing;
+            this.source = source;
+        }
+
+        public String getAction() {
+            return action;
+        }
+
+        public String getIndex() {
+            return index;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public String getRouting() {
+            return routing;
+        }
+
+        public Object getSource() {
+            return source;
+        }
+
+        private void appendTo(StringBuilder builder) {
+            ObjectNode header = JacksonUtil.OBJECT_MAPPER.createObjectNode();
+            var metadata = header.putObject(action)
+                .put("_index", index)
+                .put("_id", id);
+            if (routing != null) {
+                metadata.put("routing", routing);
+            }
+            builder.append(header.toString()).append('\n');
+
+            if (source != null) {
+                builder.append(JacksonUtil.toString(source)).append('\n');
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.meveo.elastic;
+
+import java.util.concurrent.atomic.LongAdder;
+
+import org.meveo.elastic.ConcurrencyLimiter.Priority;
+
+/**
+ * Counters of an {@link ElasticRestClient}
+ */
+public class ElasticClientMetrics {
+
+    private final LongAdder requestBytes = new LongAdder();
+    private final LongAdder compressedRequestBytes = new LongAdder();
+    private final LongAdder responseBytes = new LongAdder();
+    private final LongAdder compressedResponseBytes = new LongAdder();
+    private final ConcurrencyLimiter limiter;
+
+    ElasticClientMetrics(ConcurrencyLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    /**
+     * @return the current limit of concurrent requests
+     */
+    public int getConcurrencyLimit() {
+        return limiter.getLimit();
+    }
+
+    /**
+     * @return the number of requests of the given priority being sent
+     */
+    public int getInFlight(Priority priority) {
+        return limiter.getInFlight(priority);
+    }
+
+    /**
+     * @return the number of requests of the given priority waiting to be sent
+     */
+    public int getQueueDepth(Priority priority) {
+        return limiter.getQueueDepth(priority);
+    }
+
+    /**
+     * @return the size of the compressed request bodies, before compression
+     */
+    public long getRequestBytes() {
+        return requestBytes.sum();
+    }
+
+    /**
+     * @return the size of the compressed request bodies, as sent on the network
+     */
+    public long getCompressedRequestBytes() {
+        return compressedRequestBytes.sum();
+    }
+
+    /**
+     * @return the size of the compressed response bodies, after decompression
+     */
+    public long getResponseBytes() {
+        return responseBytes.sum();
+    }
+
+    /**
+     * @return the size of the compressed response bodies, as received from the network
+     */
+    public long getCompressedResponseBytes() {
+        return compressedResponseBytes.sum();
+    }
+
+    /**
+     * @return how many times the request bodies were reduced by compression, 0 if no request was compressed
+     */
+    public double getRequestCompressionRatio() {
+        return ratio(getRequestBytes(), getCompressedRequestBytes());
+    }
+
+    /**
+     * @return how many times the response bodies were reduced by compression, 0 if no response was compressed
+     */
+    public double getResponseCompressionRatio() {
+        return ratio(getResponseBytes(), getCompressedResponseBytes());
+    }
+
+    LongAdder requestBytesCounter() {
+        return requestBytes;
+    }
+
+    LongAdder compressedRequestBytesCounter() {
+        return compressedRequestBytes;
+    }
+
+    LongAdder responseBytesCounter() {
+        return responseBytes;
+    }
+
+    LongAdder compressedResponseBytesCounter() {
+        return compressedResponseBytes;
+    }
+
+    private static double ratio(long raw, long compressed) {
+        return compressed == 0 ? 0 : (double) raw / compressed;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("concurrency limit = %d, searches in flight = %d, writes in flight = %d, queued searches = %d, queued writes = %d, "
+            + "request compression ratio = %.2f (%d / %d bytes), response compression ratio = %.2f (%d / %d bytes)",
+            getConcurrencyLimit(), getInFlight(Priority.SEARCH), getInFlight(Priority.WRITE), getQueueDepth(Priority.SEARCH), getQueueDepth(Priority.WRITE),
+            getRequestCompressionRatio(), getRequestBytes(), getCompressedRequestBytes(),
+            getResponseCompressionRatio(), getResponseBytes(), getCompressedResponseBytes());
+    }
+}
@@ -0,0 +1,307 @@
+package org.meveo.elastic;
+
+import org.meveo.commons.utils.ParamBean;
+
+/**
+ * Settings of an {@link ElasticRestClient}. <br>
+ * They are read from the meveo properties, using the <code>elasticsearch.storage.{storageConfigurationCode}.{setting}</code> key,
+ * or the <code>elasticsearch.storage.{setting}</code> key to apply to all storage configurations.
+ */
+public class ElasticClientSettings {
+
+    private static final String PREFIX = "elasticsearch.storage.";
+
+    private boolean gzipRequests = false;
+    private boolean gzipResponses = false;
+    private WireFormat wireFormat = WireFormat.JSON;
+    private int trackTotalHits = 10000;
+    private long searchCacheTtl = 5000;
+    private int maxRetries = 3;
+    private long retryBaseDelay = 100;
+    private long retryMaxDelay = 5000;
+    private long requestDeadline = 30000;
+    private int circuitBreakerThreshold = 5;
+    private long circuitBreakerOpenTime = 10000;
+    private int initialConcurrency = 10;
+    private int minConcurrency = 1;
+    private int maxConcurrency = 20;
+    private double writeConcurrencyShare = 0.5;
+    private double latencyTolerance = 3.0;
+    private RefreshPolicy refreshPolicy = RefreshPolicy.FALSE;
+    private long multiSearchWindow = 0;
+    private int multiSearchMaxBatch = 32;
+    private long metricsLogInterval = 60000;
+
+    public static ElasticClientSettings load(ParamBean paramBean, String storageConfigurationCode) {
+        var reader = new Reader(paramBean, storageConfigurationCode);
+        return new ElasticClientSettings()
+            .withGzipRequests(reader.getBoolean("gzipRequests", false))
+            .withGzipResponses(reader.getBoolean("gzipResponses", false))
+            .withWireFormat(reader.getEnum("wireFormat", WireFormat.class, WireFormat.JSON))
+            .withTrackTotalHits(reader.getInt("trackTotalHits", 10000))
+            .withSearchCacheTtl(reader.getLong("searchCacheTtl", 5000))
+            .withMaxRetries(reader.getInt("maxRetries", 3))
+            .withRetryDelays(reader.getLong("retryBaseDelay", 100), reader.getLong("retryMaxDelay", 5000))
+            .withRequestDeadline(reader.getLong("requestDeadline", 30000))
+            .withCircuitBreaker(reader.getInt("circuitBreakerThreshold", 5), reader.getLong("circuitBreakerOpenTime", 10000))
+            .withConcurrency(reader.getInt("initialConcurrency", 10), reader.getInt("minConcurrency", 1), reader.getInt("maxConcurrency", 20))
+            .withWriteConcurrencyShare(reader.getDouble("writeConcurrencyShare", 0.5))
+            .withLatencyTolerance(reader.getDouble("latencyTolerance", 3.0))
+            .withRefreshPolicy(reader.getEnum("refreshPolicy", RefreshPolicy.class, RefreshPolicy.FALSE))
+            .withMultiSearch(reader.getLong("multiSearchWindow", 0), reader.getInt("multiSearchMaxBatch", 32))
+            .withMetricsLogInterval(reader.getLong("metricsLogInterval", 60000));
+    }
+
+    /**
+     * @param gzipRequests whether request bodies are compressed
+     */
+    public ElasticClientSettings withGzipRequests(boolean gzipRequests) {
+        this.gzipRequests = gzipRequests;
+        return this;
+    }
+
+    /**
+     * @param gzipResponses whether compressed responses are requested
+     */
+    public ElasticClientSettings withGzipResponses(boolean gzipResponses) {
+        this.gzipResponses = gzipResponses;
+        return this;
+    }
+
+    /**
+     * @param wireFormat format of the documents and search responses
+     */
+    public ElasticClientSettings withWireFormat(WireFormat wireFormat) {
+        this.wireFormat = wireFormat;
+        return this;
+    }
+
+    /**
+     * @param trackTotalHits number of hits up to which the total is exact, -1 to always count exactly
+     */
+    public ElasticClientSettings withTrackTotalHits(int trackTotalHits) {
+        this.trackTotalHits = trackTotalHits;
+        return this;
+    }
+
+    /**
+     * @param searchCacheTtl time in milliseconds during which search pages and counts are reused, 0 to disable
+     */
+    public ElasticClientSettings withSearchCacheTtl(long searchCacheTtl) {
+        this.searchCacheTtl = searchCacheTtl;
+        return this;
+    }
+
+    /**
+     * @param maxRetries maximum number of times a rejected request is sent again
+     */
+    public ElasticClientSettings withMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+        return this;
+    }
+
+    /**
+     * @param retryBaseDelay delay in milliseconds before the first retry, doubled at each retry
+     * @param retryMaxDelay  maximum delay in milliseconds between two retries
+     */
+    public ElasticClientSettings withRetryDelays(long retryBaseDelay, long retryMaxDelay) {
+        this.retryBaseDelay = retryBaseDelay;
+        this.retryMaxDelay = retryMaxDelay;
+        return this;
+    }
+
+    /**
+     * @param requestDeadline time in milliseconds after which a request is not retried anymore
+     */
+    public ElasticClientSettings withRequestDeadline(long requestDeadline) {
+        this.requestDeadline = requestDeadline;
+        return this;
+    }
+
+    /**
+     * @param threshold number of consecutive failures after which requests to a node are rejected
+     * @param openTime  time in milliseconds during which requests to a failing node are rejected
+     */
+    public ElasticClientSettings withCircuitBreaker(int threshold, long openTime) {
+        this.circuitBreakerThreshold = threshold;
+        this.circuitBreakerOpenTime = openTime;
+        return this;
+    }
+
+    /**
+     * @param initial initial number of concurrent requests
+     * @param min     lowest limit of concurrent requests
+     * @param max     highest limit of concurrent requests, also the size of the connection pool
+     */
+    public ElasticClientSettings withConcurrency(int initial, int min, int max) {
+        this.initialConcurrency = initial;
+        this.minConcurrency = min;
+        this.maxConcurrency = max;
+        return this;
+    }
+
+    /**
+     * @param writeConcurrencyShare share of the concurrency limit that writes may use
+     */
+    public ElasticClientSettings withWriteConcurrencyShare(double writeConcurrencyShare) {
+        this.writeConcurrencyShare = writeConcurrencyShare;
+        return this;
+    }
+
+    /**
+     * @param latencyTolerance multiple of the lowest latency above which the concurrency limit is reduced
+     */
+    public ElasticClientSettings withLatencyTolerance(double latencyTolerance) {
+        this.latencyTolerance = latencyTolerance;
+        return this;
+    }
+
+    /**
+     * @param refreshPolicy default refresh policy of the writes
+     */
+    public ElasticClientSettings withRefreshPolicy(RefreshPolicy refreshPolicy) {
+        this.refreshPolicy = refreshPolicy;
+        return this;
+    }
+
+    /**
+     * @param window   time in microseconds during which concurrent searches are grouped in a multi search request, 0 to disable
+     * @param maxBatch maximum number of searches in a multi search request
+     */
+    public ElasticClientSettings withMultiSearch(long window, int maxBatch) {
+        this.multiSearchWindow = window;
+        this.multiSearchMaxBatch = maxBatch;
+        return this;
+    }
+
+    /**
+     * @param metricsLogInterval time in milliseconds between two logs of the client metrics, 0 to only log them when the client is closed
+     */
+    public ElasticClientSettings withMetricsLogInterval(long metricsLogInterval) {
+        this.metricsLogInterval = metricsLogInterval;
+        return this;
+    }
+
+    public boolean isGzipRequests() {
+        return gzipRequests;
+    }
+
+    public boolean isGzipResponses() {
+        return gzipResponses;
+    }
+
+    public WireFormat getWireFormat() {
+        return wireFormat;
+    }
+
+    public int getTrackTotalHits() {
+        return trackTotalHits;
+    }
+
+    public long getSearchCacheTtl() {
+        return searchCacheTtl;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public long getRetryBaseDelay() {
+        return retryBaseDelay;
+    }
+
+    public long getRetryMaxDelay() {
+        return retryMaxDelay;
+    }
+
+    public long getRequestDeadline() {
+        return requestDeadline;
+    }
+
+    public int getCircuitBreakerThreshold() {
+        return circuitBreakerThreshold;
+    }
+
+    public long getCircuitBreakerOpenTime() {
+        return circuitBreakerOpenTime;
+    }
+
+    public int getInitialConcurrency() {
+        return initialConcurrency;
+    }
+
+    public int getMinConcurrency() {
+        return minConcurrency;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public double getWriteConcurrencyShare() {
+        return writeConcurrencyShare;
+    }
+
+    public double getLatencyTolerance() {
+        return latencyTolerance;
+    }
+
+    public RefreshPolicy getRefreshPolicy() {
+        return refreshPolicy;
+    }
+
+    public long getMultiSearchWindow() {
+        return multiSearchWindow;
+    }
+
+    public int getMultiSearchMaxBatch() {
+        return multiSearchMaxBatch;
+    }
+
+    public long getMetricsLogInterval() {
+        return metricsLogInterval;
+    }
+
+    private static class Reader {
+        private final ParamBean paramBean;
+        private final String storageConfigurationCode;
+
+        private Reader(ParamBean paramBean, String storageConfigurationCode) {
+            this.paramBean = paramBean;
+            this.storageConfigurationCode = storageConfigurationCode;
+        }
+
+        private String get(String setting) {
+            String value = paramBean.getProperty(PREFIX + storageConfigurationCode + "." + setting, null);
+            if (value == null || value.isBlank()) {
+                value = paramBean.getProperty(PREFIX + setting, null);
+            }
+            return value == null || value.isBlank() ? null : value.trim();
+        }
+
+        private boolean getBoolean(String setting, boolean defaultValue) {
+            String value = get(setting);
+            return value == null ? defaultValue : Boolean.parseBoolean(value);
+        }
+
+        private int getInt(String setting, int defaultValue) {
+            String value = get(setting);
+            return value == null ? defaultValue : Integer.parseInt(value);
+        }
+
+        private long getLong(String setting, long defaultValue) {
+            String value = get(setting);
+            return value == null ? defaultValue : Long.parseLong(value);
+        }
+
+        private double getDouble(String setting, double defaultValue) {
+            String value = get(setting);
+            return value == null ? defaultValue : Double.parseDouble(value);
+        }
+
+        private <E extends Enum<E>> E getEnum(String setting, Class<E> enumClass, E defaultValue) {
+            String value = get(setting);
+            return value == null ? defaultValue : Enum.valueOf(enumClass, value.toUpperCase());
+        }
+    }
+}
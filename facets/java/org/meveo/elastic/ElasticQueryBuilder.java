@@ -1,121 +1,259 @@
 package org.meveo.elastic;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import com.fasterxml.jackson.databind.node.*;
 
-import org.meveo.service.script.Script;
-import org.meveo.admin.exception.BusinessException;
 import org.meveo.model.persistence.JacksonUtil;
 
-public class ElasticQueryBuilder extends Script {
+/**
+ * Immutable builder of the products search query : each <code>with</code> method returns a new builder,
+ * so instances can be shared between threads. <br>
+ * The query is compiled once per combination of the used criteria into a {@link QueryTemplate},
+ * then only the parameters are bound when building it. <br>
+ * When a vector is given, the nearest neighbours are searched on the HNSW index of the <code>dense_vector</code> field.
+ * If a keyword is also given, the search is hybrid : the score of a product is the weighted sum of its keyword (BM25) 
+ * and vector similarity scores.
+ */
+public final class ElasticQueryBuilder {
 
-    private int pageSize;
-    private int pageNumber;
+    /**
+     * Highest number of candidates accepted by elastic
+     */
+    private static final int MAX_NUM_CANDIDATES = 10000;
 
-    private ObjectNode keywordNode;
-    private ObjectNode filter;
-    private ObjectNode isAvailableNode;
-    private ObjectNode priceRangeNode;
-	
-	@Override
-	public void execute(Map<String, Object> parameters) throws BusinessException {
-		super.execute(parameters);
-	}
+    private static final int DEFAULT_NUM_CANDIDATES = 100;
 
-    public ElasticQueryBuilder withPageSize(int pageSize) {
+    private static final ElasticQueryBuilder EMPTY = new ElasticQueryBuilder(0, 0, null, false, null, null, null,
+                null, null, DEFAULT_NUM_CANDIDATES, 1.0, 1.0);
+
+    private static final Map<String, QueryTemplate> TEMPLATES = new ConcurrentHashMap<>();
+
+    private final int pageSize;
+    private final int pageNumber;
+
+    private final String keyword;
+    private final boolean isAvailable;
+    private final Double priceMin;
+    private final Double priceMax;
+    private final String excludedId;
+
+    private final String vectorField;
+    private final double[] vector;
+    private final int numCandidates;
+    private final double keywordWeight;
+    private final double vectorWeight;
+
+    private ElasticQueryBuilder(int pageSize, int pageNumber, String keyword, boolean isAvailable, Double priceMin, Double priceMax, String excludedId,
+                String vectorField, double[] vector, int numCandidates, double keywordWeight, double vectorWeight) {
         this.pageSize = pageSize;
-        return this;
+        this.pageNumber = pageNumber;
+        this.keyword = keyword;
+        this.isAvailable = isAvailable;
+        this.priceMin = priceMin;
+        this.priceMax = priceMax;
+        this.excludedId = excludedId;
+        this.vectorField = vectorField;
+        this.vector = vector;
+        this.numCandidates = numCandidates;
+        this.keywordWeight = keywordWeight;
+        this.vectorWeight = vectorWeight;
+    }
+
+    public static ElasticQueryBuilder create() {
+        return EMPTY;
+    }
+
+    public ElasticQueryBuilder withPageSize(int pageSize) {
+        return new ElasticQueryBuilder(pageSize, pageNumber, keyword, isAvailable, priceMin, priceMax, excludedId,
+                vectorField, vector, numCandidates, keywordWeight, vectorWeight);
     }
 
     public ElasticQueryBuilder withPageNumber(int pageNumber) {
-        this.pageNumber = pageNumber;
-        return this;
+        return new ElasticQueryBuilder(pageSize, pageNumber, keyword, isAvailable, priceMin, priceMax, excludedId,
+                vectorField, vector, numCandidates, keywordWeight, vectorWeight);
     }
 
     public ElasticQueryBuilder withKeyword(String keyword) {
-        keywordNode = JacksonUtil.OBJECT_MAPPER.createObjectNode();
-
-        if (keyword == null || keyword.isEmpty() || keyword.trim().isEmpty()) {            
-            keywordNode.putObject("match_all");
-        }
-        else {
-            keywordNode.putObject("multi_match")
-                        .put("query", keyword)
-                        .put("type", "phrase_prefix")
-                        .putArray("fields")
-                        .add("*")
-                        .add("*._2gram")
-                        .add("*._3gram");
+        if (keyword == null || keyword.trim().isEmpty()) {
+            keyword = null;
         }
-        return this;
+        return new ElasticQueryBuilder(pageSize, pageNumber, keyword, isAvailable, priceMin, priceMax, excludedId,
+                vectorField, vector, numCandidates, keywordWeight, vectorWeight);
     }
 
     public ElasticQueryBuilder withFilterIsAvailable(Boolean isAvailable) {
-        if (isAvailable == null || isAvailable == false) {
-            isAvailableNode = null;
-            return this;
-        }
+        return new ElasticQueryBuilder(pageSize, pageNumber, keyword, Boolean.TRUE.equals(isAvailable), priceMin, priceMax, excludedId,
+                vectorField, vector, numCandidates, keywordWeight, vectorWeight);
+    }
 
-        isAvailableNode = JacksonUtil.OBJECT_MAPPER.createObjectNode();
-            isAvailableNode.putObject("range")
-                        .putObject("qty_available")
-                        .put("gt", 0.0)
-                        .put("boost", 2.0);
+    public ElasticQueryBuilder withFilterPriceRange(Double min, Double max) {
+        return new ElasticQueryBuilder(pageSize, pageNumber, keyword, isAvailable, min, max, excludedId,
+                vectorField, vector, numCandidates, keywordWeight, vectorWeight);
+    }
 
-        return this;
+    /**
+     * @param id id of a product to leave out of the results, typically the one whose similar products are searched
+     */
+    public ElasticQueryBuilder withExcludedId(String id) {
+        return new ElasticQueryBuilder(pageSize, pageNumber, keyword, isAvailable, priceMin, priceMax, id,
+                vectorField, vector, numCandidates, keywordWeight, vectorWeight);
     }
 
-    public ElasticQueryBuilder withFilterPriceRange(Double min, Double max) {
-        if (min == null && max == null) {
-            priceRangeNode = null;
-            return this;
-        }
+    /**
+     * @param field  <code>dense_vector</code> field to search
+     * @param vector vector whose nearest neighbours are searched, null to search by keyword only
+     */
+    public ElasticQueryBuilder withVector(String field, double[] vector) {
+        return new ElasticQueryBuilder(pageSize, pageNumber, keyword, isAvailable, priceMin, priceMax, excludedId,
+                field, vector == null ? null : vector.clone(), numCandidates, keywordWeight, vectorWeight);
+    }
 
-        priceRangeNode = JacksonUtil.OBJECT_MAPPER.createObjectNode();
-        priceRangeNode.putObject("range")
-                        .putObject("lst_price")
-                        .put("gte", min)
-                        .put("lte", max)
-                        .put("boost", 2.0);
+    /**
+     * @param numCandidates number of candidates considered on each shard, higher values give more accurate results but slower searches
+     */
+    public ElasticQueryBuilder withNumCandidates(int numCandidates) {
+        return new ElasticQueryBuilder(pageSize, pageNumber, keyword, isAvailable, priceMin, priceMax, excludedId,
+                vectorField, vector, numCandidates, keywordWeight, vectorWeight);
+    }
 
-        return this;
+    /**
+     * @param keywordWeight weight of the keyword score in hybrid searches
+     * @param vectorWeight  weight of the vector similarity score in hybrid searches
+     */
+    public ElasticQueryBuilder withHybridWeights(double keywordWeight, double vectorWeight) {
+        return new ElasticQueryBuilder(pageSize, pageNumber, keyword, isAvailable, priceMin, priceMax, excludedId,
+                vectorField, vector, numCandidates, keywordWeight, vectorWeight);
     }
 
-    public String getFilters() {
-        filter = JacksonUtil.OBJECT_MAPPER.createObjectNode();
-        ArrayNode filters = filter.putArray("must");
+    public String build() {
+        boolean hasKeyword = keyword != null;
+        boolean hasPriceRange = priceMin != null || priceMax != null;
+        boolean hasExcludedId = excludedId != null;
+        boolean hasVector = vector != null;
+
+        List<Object> parameters = new ArrayList<>();
+        parameters.add(pageNumber);
+        parameters.add(pageSize);
+        if (hasKeyword) {
+            parameters.add(keyword);
+        }
+        if (hasPriceRange) {
+            parameters.add(priceMin);
+            parameters.add(priceMax);
+        }
+        if (hasExcludedId) {
+            parameters.add(excludedId);
+        }
+        if (hasVector) {
+            // The page is taken from the k nearest neighbours
+            int candidates = Math.min(MAX_NUM_CANDIDATES, Math.max(numCandidates, pageNumber + pageSize));
+            int k = Math.min(candidates, Math.max(1, pageNumber + pageSize));
+            parameters.add(vectorField);
+            parameters.add(vector);
+            parameters.add(k);
+            parameters.add(candidates);
+            parameters.add(vectorWeight);
+            parameters.add(keywordWeight);
+        }
+
+        String shape = hasKeyword + ":" + isAvailable + ":" + hasPriceRange + ":" + hasExcludedId + ":" + hasVector;
+        QueryTemplate template = TEMPLATES.computeIfAbsent(shape, key -> compile(hasKeyword, isAvailable, hasPriceRange, hasExcludedId, hasVector));
+        return template.bind(parameters.toArray());
+    }
+
+    /**
+     * Builds the query tree, with the parameters slots numbered in the same order as in {@link #build()}
+     */
+    private static QueryTemplate compile(boolean hasKeyword, boolean isAvailable, boolean hasPriceRange, boolean hasExcludedId, boolean hasVector) {
+        int slot = 0;
+        ObjectNode query = JacksonUtil.OBJECT_MAPPER.createObjectNode();
+        query.set("from", QueryTemplate.slot(slot++));
+        query.set("size", QueryTemplate.slot(slot++));
+
+        int keywordSlot = hasKeyword ? slot++ : -1;
+        int priceMinSlot = hasPriceRange ? slot++ : -1;
+        int priceMaxSlot = hasPriceRange ? slot++ : -1;
+        int excludedIdSlot = hasExcludedId ? slot++ : -1;
+        int vectorFieldSlot = hasVector ? slot++ : -1;
+        int vectorSlot = hasVector ? slot++ : -1;
+        int kSlot = hasVector ? slot++ : -1;
+        int numCandidatesSlot = hasVector ? slot++ : -1;
+        int vectorWeightSlot = hasVector ? slot++ : -1;
+        int keywordWeightSlot = hasVector ? slot++ : -1;
+
+        // Without keyword, the vector search alone selects the products : a match_all query would add all of them
+        if (hasKeyword || !hasVector) {
+            ObjectNode bool = query.putObject("query").putObject("bool");
+            ObjectNode keywordNode = bool.putObject("must");
+            if (hasKeyword) {
+                ObjectNode multiMatch = keywordNode.putObject("multi_match");
+                multiMatch.set("query", QueryTemplate.slot(keywordSlot));
+                multiMatch.put("type", "phrase_prefix")
+                            .putArray("fields")
+                            .add("*")
+                            .add("*._2gram")
+                            .add("*._3gram");
+            } else {
+                keywordNode.putObject("match_all");
+            }
+
+            bool.putArray("filter")
+                        .add(filter(isAvailable, priceMinSlot, priceMaxSlot, excludedIdSlot));
 
-        if (isAvailableNode != null) {
-            filters.add(isAvailableNode);
+            if (hasVector) {
+                bool.set("boost", QueryTemplate.slot(keywordWeightSlot));
+            }
         }
 
-        if (priceRangeNode != null) {
-            filters.add(priceRangeNode);
+        if (hasVector) {
+            ObjectNode knn = query.putObject("knn");
+            knn.set("field", QueryTemplate.slot(vectorFieldSlot));
+            knn.set("query_vector", QueryTemplate.slot(vectorSlot));
+            knn.set("k", QueryTemplate.slot(kSlot));
+            knn.set("num_candidates", QueryTemplate.slot(numCandidatesSlot));
+            knn.set("boost", QueryTemplate.slot(vectorWeightSlot));
+            // Filtered while walking the graph, so that k products are found even if most neighbours are filtered out
+            knn.set("filter", filter(isAvailable, priceMinSlot, priceMaxSlot, excludedIdSlot));
         }
 
-        return filter.toString();
+        return QueryTemplate.compile(query);
     }
 
-    public String build() {
-        var queryJsonStr = 
-        "{"
-        + "    \"from\": " + pageNumber + ","
-        + "    \"size\": " + pageSize + ","
-        + "    \"query\": {"
-        + "        \"bool\": {"
-        + "            \"must\": "
-        + "                " + keywordNode.toString() + ","
-        + "            \"filter\": ["
-        + "                {"
-        + "                    \"bool\": " + getFilters()
-        + "                }"
-        + "            ]"
-        + "        }"
-        + "    }"
-        + "}";
-
-        return queryJsonStr;
+    private static ObjectNode filter(boolean isAvailable, int priceMinSlot, int priceMaxSlot, int excludedIdSlot) {
+        ObjectNode filter = JacksonUtil.OBJECT_MAPPER.createObjectNode();
+        ObjectNode bool = filter.putObject("bool");
+        ArrayNode filters = bool.putArray("must");
+
+        if (isAvailable) {
+            filters.addObject()
+                        .putObject("range")
+                        .putObject("qty_available")
+                        .put("gt", 0.0)
+                        .put("boost", 2.0);
+        }
+
+        if (priceMinSlot >= 0) {
+            ObjectNode priceRange = filters.addObject()
+                        .putObject("range")
+                        .putObject("lst_price");
+            priceRange.set("gte", QueryTemplate.slot(priceMinSlot));
+            priceRange.set("lte", QueryTemplate.slot(priceMaxSlot));
+            priceRange.put("boost", 2.0);
+        }
+
+        if (excludedIdSlot >= 0) {
+            bool.putArray("must_not")
+                        .addObject()
+                        .putObject("ids")
+                        .putArray("values")
+                        .add(QueryTemplate.slot(excludedIdSlot));
+        }
+
+        return filter;
     }
-	
-}
\ No newline at end of file
+
+}
@@ -2,12 +2,28 @@ package org.meveo.elastic;
 
 import java.io.IOException;
 import java.net.URI;
-import java.util.function.Function;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponseInterceptor;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.Credentials;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CredentialsProvider;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpDelete;
 import org.apache.http.client.methods.HttpEntityEnclosingRequestBase;
@@ -16,30 +32,137 @@ import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 
 import org.apache.http.client.methods.HttpRequestBase;
+import org.apache.http.entity.ByteArrayEntity;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.client.CloseableHttpClient;
 import org.apache.http.impl.client.HttpClientBuilder;
 import org.meveo.admin.exception.BusinessException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.MissingNode;
 
 public class ElasticRestClient {
+    public static final ContentType APPLICATION_NDJSON = ContentType.create("application/x-ndjson", StandardCharsets.UTF_8);
+
+    /**
+     * Statuses of the requests which may succeed if sent again
+     */
+    private static final Set<Integer> UNAVAILABLE_STATUSES = Set.of(502, 503, 504);
+
+    private static final int TOO_MANY_REQUESTS = 429;
+
+    /**
+     * Read-only endpoints called with POST
+     */
+    private static final Set<String> SEARCH_ENDPOINTS = Set.of("_search", "_count", "_msearch", "_mget");
+
+    private static Logger LOG = LoggerFactory.getLogger(ElasticRestClient.class);
+
+    /**
+     * Logs the metrics of all the clients, its daemon thread does not prevent the undeployment
+     */
+    private static final ScheduledExecutorService METRICS_SCHEDULER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        var thread = new Thread(runnable, "elastic-metrics");
+        thread.setDaemon(true);
+        return thread;
+    });
+
     private CloseableHttpClient client;
     private String baseUri;
+    private ElasticClientSettings settings;
+    private ConcurrencyLimiter limiter;
+    private ElasticClientMetrics metrics;
+    private Map<String, CircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+    private MultiSearchBatcher multiSearchBatcher;
+    private ScheduledFuture<?> metricsLog;
 
     public ElasticRestClient(String host, int port, String userName, String password) {
+        this(host, port, userName, password, new ElasticClientSettings());
+    }
+
+    public ElasticRestClient(String host, int port, String userName, String password, ElasticClientSettings settings) {
         CredentialsProvider provider = new BasicCredentialsProvider();
         Credentials credentials =  new UsernamePasswordCredentials(userName, password);
         provider.setCredentials(AuthScope.ANY, credentials);
 
-        this.client = HttpClientBuilder.create()
+        this.limiter = new ConcurrencyLimiter(settings.getInitialConcurrency(), settings.getMinConcurrency(), settings.getMaxConcurrency(),
+            settings.getWriteConcurrencyShare(), settings.getLatencyTolerance());
+        this.metrics = new ElasticClientMetrics(limiter);
+
+        var builder = HttpClientBuilder.create()
             .setDefaultCredentialsProvider(provider)
-            .build();
+            .setMaxConnPerRoute(settings.getMaxConcurrency())
+            .setMaxConnTotal(settings.getMaxConcurrency());
 
+        if (settings.getWireFormat() != WireFormat.JSON) {
+            builder.addInterceptorLast((HttpRequestInterceptor) (request, context) -> {
+                if (!request.containsHeader("Accept")) {
+                    request.addHeader("Accept", settings.getWireFormat().getMimeType());
+                }
+            });
+        }
+
+        if (settings.isGzipResponses()) {
+            // Replace the built-in decompression to measure the compression ratio
+            builder.disableContentCompression()
+                .addInterceptorLast((HttpRequestInterceptor) (request, context) -> {
+                    if (!request.containsHeader("Accept-Encoding")) {
+                        request.addHeader("Accept-Encoding", GzipEntities.GZIP);
+                    }
+                })
+                .addInterceptorLast((HttpResponseInterceptor) (response, context) -> {
+                    var entity = response.getEntity();
+                    if (entity != null && GzipEntities.isCompressed(entity)) {
+                        response.setEntity(GzipEntities.decompress(entity, metrics));
+                        response.removeHeaders("Content-Encoding");
+                        response.removeHeaders("Content-Length");
+                    }
+                });
+        }
+
+        this.client = builder.build();
         this.baseUri = host + ":" + port;
+        this.settings = settings;
+
+        if (settings.getMultiSearchWindow() > 0) {
+            this.multiSearchBatcher = new MultiSearchBatcher(this, settings.getMultiSearchWindow(), settings.getMultiSearchMaxBatch());
+        }
+
+        // Clients usually live as long as the application, their metrics would otherwise never be reported
+        long interval = settings.getMetricsLogInterval();
+        if (interval > 0) {
+            this.metricsLog = METRICS_SCHEDULER.scheduleAtFixedRate(() -> LOG.info("Client of {} : {}", baseUri, metrics), 
+                interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    public ElasticClientSettings getSettings() {
+        return settings;
+    }
+
+    public ElasticClientMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the batcher of concurrent searches, null if multi search batching is disabled
+     */
+    public MultiSearchBatcher getMultiSearchBatcher() {
+        return multiSearchBatcher;
     }
 
     public void close() {
+        LOG.info("Closing client of {} : {}", baseUri, metrics);
+        if (metricsLog != null) {
+            metricsLog.cancel(false);
+        }
+        if (multiSearchBatcher != null) {
+            multiSearchBatcher.close();
+        }
         try {
             this.client.close();
         } catch (IOException e) {
@@ -48,18 +171,79 @@ public class ElasticRestClient {
         }
     }
 
+    /**
+     * @return the response status
+     * @throws UncheckedIOException if no response was received, e.g. because the circuit of the node is open or the deadline is exceeded
+     */
     public int delete(String relativeTargetFormat, Object... args) {
-        var httpHead = new HttpDelete(baseUri + String.format(relativeTargetFormat, args));
-        return this.execute(httpHead, response -> response.getStatusLine().getStatusCode());
+        return getStatus(new HttpDelete(baseUri + String.format(relativeTargetFormat, args)));
     }
 
+    /**
+     * @return the response status
+     * @throws UncheckedIOException if no response was received, e.g. because the circuit of the node is open or the deadline is exceeded
+     */
     public int head(String relativeTargetFormat, Object... args) {
-        var httpHead = new HttpHead(baseUri + String.format(relativeTargetFormat, args));
-        return this.execute(httpHead, response -> response.getStatusLine().getStatusCode());
+        return getStatus(new HttpHead(baseUri + String.format(relativeTargetFormat, args)));
+    }
+
+    private int getStatus(HttpRequestBase request) {
+        try (var response = this.send(request)) {
+            return response.getStatusLine().getStatusCode();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Failed to send " + request.getMethod() + " " + request.getURI().getPath(), e);
+        }
     }
 
     public void setBody(HttpEntityEnclosingRequestBase request, String body) {
-        request.setEntity(new StringEntity(body, ContentType.APPLICATION_JSON));
+        setBody(request, body, ContentType.APPLICATION_JSON);
+    }
+
+    public void setBody(HttpEntityEnclosingRequestBase request, String body, ContentType contentType) {
+        setBody(request, new StringEntity(body, contentType));
+    }
+
+    public void setBody(HttpEntityEnclosingRequestBase request, HttpEntity entity) {
+        if (settings.isGzipRequests()) {
+            entity = GzipEntities.compress(entity, metrics);
+        }
+        request.setEntity(entity);
+    }
+
+    /**
+     * Serializes the content in the configured wire format and sets it as the body of the request
+     */
+    public void setContent(HttpEntityEnclosingRequestBase request, Object content) {
+        var wireFormat = settings.getWireFormat();
+        try {
+            byte[] bytes = wireFormat.getMapper().writeValueAsBytes(content);
+            setBody(request, new ByteArrayEntity(bytes, wireFormat.getContentType()));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Failed to serialize request body", e);
+        }
+    }
+
+    /**
+     * Parses the response body, according to its content type
+     */
+    public JsonNode readTree(HttpResponse response) throws IOException {
+        var entity = response.getEntity();
+        var contentType = entity.getContentType();
+        var wireFormat = WireFormat.fromContentType(contentType == null ? null : contentType.getValue());
+        try (var content = entity.getContent()) {
+            return wireFormat.getMapper().readTree(content);
+        }
+    }
+
+    /**
+     * @return the error reported in the body of a failed response, or an empty node if the body cannot be read
+     */
+    private JsonNode readError(HttpResponse response) {
+        try {
+            return readTree(response).path("error");
+        } catch (IOException | RuntimeException e) {
+            return MissingNode.getInstance();
+        }
     }
 
     public HttpGetWithBody get(String relativeTargetFormat, Object... args) {
@@ -76,7 +260,7 @@ public class ElasticRestClient {
     
     public <T> T execute(HttpRequestBase request, ResultHandler<T> handler) {
         try {
-            try (var response = this.client.execute(request)) {
+            try (var response = this.send(request)) {
                 if (handler == null) {
                     return null;
                 }
@@ -90,7 +274,7 @@ public class ElasticRestClient {
     
     public <T> T execute(HttpRequestBase request, ResultHandler<T> handler, ErrorConsumer errorHandler) {
         try {
-            try (var response = this.client.execute(request)) {
+            try (var response = this.send(request)) {
                 if (handler == null) {
                     return null;
                 }
@@ -104,7 +288,7 @@ public class ElasticRestClient {
 
     public <T> T execute(HttpRequestBase request, ResultHandler<T> handler, ErrorHandler errorHandler) throws BusinessException {
         try {
-            try (var response = this.client.execute(request)) {
+            try (var response = this.send(request)) {
                 if (handler == null) {
                     return null;
                 }
@@ -119,6 +303,232 @@ public class ElasticRestClient {
     	return execute(request, handler, handleError(errorMessage));
     }
     
+    /**
+     * Sends the operations as a single <code>_bulk</code> request. <br>
+     * Operations rejected because the cluster is overloaded are sent again, with the same backoff as the other requests.
+     * 
+     * @return the elastic response of the last attempt
+     * @throws BusinessException if the request fails or is rejected as a whole, or if any of the operations is rejected
+     */
+    public JsonNode bulk(ElasticBulkRequest bulkRequest) throws BusinessException {
+        return bulk(bulkRequest, null);
+    }
+
+    /**
+     * @param refreshPolicy refresh policy of the request, elastic default if null
+     * @see #bulk(ElasticBulkRequest)
+     */
+    public JsonNode bulk(ElasticBulkRequest bulkRequest, RefreshPolicy refreshPolicy) throws BusinessException {
+        long deadline = System.currentTimeMillis() + settings.getRequestDeadline();
+        ElasticBulkRequest pending = bulkRequest;
+
+        for (int attempt = 0; ; attempt++) {
+            var request = refreshPolicy == null ? post("/_bulk") : post("/_bulk?refresh=%s", refreshPolicy.getValue());
+            setBody(request, pending.toNdJson(), APPLICATION_NDJSON);
+
+            JsonNode json = execute(request, response -> {
+                int status = response.getStatusLine().getStatusCode();
+                if (status >= 300) {
+                    // Whole request rejected : malformed, too large, or the cluster still overloaded after the retries
+                    throw new BusinessException("Bulk request rejected with status " + status + " " + response.getStatusLine().getReasonPhrase() 
+                        + " : " + readError(response));
+                }
+                return readTree(response);
+            }, "Failed to execute bulk request");
+            if (!json.path("errors").asBoolean(false)) {
+                return json;
+            }
+
+            var rejected = new ElasticBulkRequest();
+            var items = json.path("items");
+            for (int i = 0; i < items.size(); i++) {
+                var result = items.get(i).elements().next();
+                if (result.path("status").asInt() == TOO_MANY_REQUESTS) {
+                    rejected.add(pending.getOperations().get(i));
+                } else if (result.has("error")) {
+                    throw new BusinessException("Bulk operation failed for " + result.path("_id").asText() + " : " + result.get("error"));
+                }
+            }
+
+            if (rejected.isEmpty()) {
+                return json;
+            }
+
+            long delay = backoff(attempt);
+            if (attempt >= settings.getMaxRetries() || System.currentTimeMillis() + delay > deadline) {
+                throw new BusinessException(rejected.size() + " bulk operations rejected by elastic");
+            }
+
+            LOG.warn("{} bulk operations rejected by elastic, retrying in {} ms", rejected.size(), delay);
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new BusinessException("Interrupted while retrying bulk request", e);
+            }
+            pending = rejected;
+        }
+    }
+
+    /**
+     * Sends the request, and sends it again with an exponential backoff if the cluster is overloaded (429), 
+     * or if the node is unavailable and the request is idempotent. <br>
+     * Retries stop after the maximum number of retries, or when the next one would exceed the request deadline.
+     * Requests to a node failing repeatedly are rejected by its circuit breaker. <br>
+     * Each attempt waits for the concurrency limiter, which adapts to the latency and rejections of the cluster.
+     */
+    private CloseableHttpResponse send(HttpRequestBase request) throws IOException {
+        long deadline = System.currentTimeMillis() + settings.getRequestDeadline();
+        boolean idempotent = isIdempotent(request);
+        var priority = isSearch(request) ? ConcurrencyLimiter.Priority.SEARCH : ConcurrencyLimiter.Priority.WRITE;
+        var circuitBreaker = circuitBreakers.computeIfAbsent(request.getURI().getAuthority(), 
+            node -> new CircuitBreaker(node, settings.getCircuitBreakerThreshold(), settings.getCircuitBreakerOpenTime()));
+
+        String kind = getKind(request);
+
+        for (int attempt = 0; ; attempt++) {
+            var permit = limiter.acquire(priority, kind, Math.max(0, deadline - System.currentTimeMillis()));
+            try {
+                circuitBreaker.acquire();
+            } catch (IOException e) {
+                permit.cancel();
+                throw e;
+            }
+
+            CloseableHttpResponse response = null;
+            IOException failure = null;
+            try {
+                // The whole exchange, including waiting for the response, must fit in the remaining time
+                int remaining = (int) Math.max(1, deadline - System.currentTimeMillis());
+                var config = request.getConfig() == null ? RequestConfig.DEFAULT : request.getConfig();
+                int socketTimeout = config.getSocketTimeout() > 0 ? Math.min(config.getSocketTimeout(), remaining) : remaining;
+                request.setConfig(RequestConfig.copy(config)
+                    .setConnectTimeout(remaining)
+                    .setConnectionRequestTimeout(remaining)
+                    .setSocketTimeout(socketTimeout)
+                    .build());
+
+                response = this.client.execute(request);
+            } catch (IOException e) {
+                failure = e;
+            } catch (RuntimeException | Error e) {
+                // Not a failure of the node, but the permits must not leak
+                permit.cancel();
+                circuitBreaker.cancel();
+                throw e;
+            }
+
+            int status = response == null ? 0 : response.getStatusLine().getStatusCode();
+            if (response == null) {
+                permit.release(false);
+            } else {
+                // The permit is held until the body is consumed
+                response = new ReleasingResponse(response, permit, status == TOO_MANY_REQUESTS);
+            }
+
+            boolean unavailable = failure != null || UNAVAILABLE_STATUSES.contains(status);
+            if (unavailable) {
+                circuitBreaker.onFailure();
+            } else {
+                circuitBreaker.onSuccess();
+            }
+
+            boolean retryable = status == TOO_MANY_REQUESTS || (unavailable && idempotent);
+            long delay = backoff(attempt);
+            if (!retryable || attempt >= settings.getMaxRetries() || !isRepeatable(request) 
+                    || System.currentTimeMillis() + delay > deadline) {
+                if (failure != null) {
+                    throw failure;
+                }
+                return response;
+            }
+
+            LOG.warn("Elastic request {} {} failed ({}), retrying in {} ms", request.getMethod(), request.getURI().getPath(), 
+                failure != null ? failure.getMessage() : status, delay);
+            if (response != null) {
+                response.close();
+            }
+
+            try {
+                Thread.sleep(delay);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while retrying elastic request");
+            }
+        }
+    }
+
+    /**
+     * Exponential backoff with jitter : between half and the whole of the exponential delay
+     */
+    private long backoff(int attempt) {
+        long delay = Math.min(settings.getRetryMaxDelay(), settings.getRetryBaseDelay() << Math.min(attempt, 20));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * @return the kind of the request, whose latencies are comparable : its method, its endpoint, 
+     *         and the order of magnitude of its body size
+     */
+    private static String getKind(HttpRequestBase request) {
+        String endpoint = "index";
+        for (String segment : request.getURI().getPath().split("/")) {
+            if (segment.startsWith("_")) {
+                endpoint = segment;
+                break;
+            }
+        }
+
+        int sizeClass = 0;
+        if (request instanceof HttpEntityEnclosingRequest) {
+            var entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            long length = entity == null ? 0 : GzipEntities.getUncompressedLength(entity);
+            if (length > 0) {
+                // Powers of 4
+                sizeClass = (63 - Long.numberOfLeadingZeros(length)) / 2;
+            }
+        }
+        return request.getMethod() + " " + endpoint + " " + sizeClass;
+    }
+
+    private static boolean isRepeatable(HttpRequestBase request) {
+        if (request instanceof HttpEntityEnclosingRequest) {
+            var entity = ((HttpEntityEnclosingRequest) request).getEntity();
+            return entity == null || entity.isRepeatable();
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the request only reads data
+     */
+    private static boolean isSearch(HttpRequestBase request) {
+        String method = request.getMethod();
+        if (method.equals("GET") || method.equals("HEAD")) {
+            return true;
+        }
+        if (method.equals("POST")) {
+            String path = request.getURI().getPath();
+            return SEARCH_ENDPOINTS.contains(path.substring(path.lastIndexOf('/') + 1));
+        }
+        return false;
+    }
+
+    /**
+     * @return whether sending the request twice has the same effect as sending it once
+     */
+    private static boolean isIdempotent(HttpRequestBase request) {
+        String method = request.getMethod();
+        if (method.equals("DELETE")) {
+            return true;
+        }
+        if (method.equals("PUT")) {
+            // A second creation would fail because the document already exists
+            return !request.getURI().getPath().contains("/_create/");
+        }
+        return isSearch(request);
+    }
+    
     @FunctionalInterface
     public static interface ResultHandler<T> {
     	T apply(CloseableHttpResponse e) throws Exception;
@@ -0,0 +1,44 @@
+package org.meveo.elastic;
+
+/**
+ * Writes buffered during a meveo transaction, to be sent as a single bulk request on commit. <br>
+ * Nested transactions join the outermost one, meveo only commits the outermost one.
+ */
+public class ElasticTransaction {
+
+    private final ElasticBulkRequest writes = new ElasticBulkRequest();
+    private RefreshPolicy refreshPolicy;
+
+    /**
+     * @param refreshPolicy default refresh policy of the bulk request
+     */
+    public ElasticTransaction(RefreshPolicy refreshPolicy) {
+        this.refreshPolicy = refreshPolicy;
+    }
+
+    public ElasticBulkRequest getWrites() {
+        return writes;
+    }
+
+    /**
+     * @return the routing key of the last pending write of the document, null if it has no routed write in the transaction
+     */
+    public String getRouting(String index, String id) {
+        var operations = writes.getOperations();
+        for (int i = operations.size() - 1; i >= 0; i--) {
+            var operation = operations.get(i);
+            if (operation.getRouting() != null && operation.getId().equals(id) && operation.getIndex().equals(index)) {
+                return operation.getRouting();
+            }
+        }
+        return null;
+    }
+
+    public RefreshPolicy getRefreshPolicy() {
+        return refreshPolicy;
+    }
+
+    public void setRefreshPolicy(RefreshPolicy refreshPolicy) {
+        this.refreshPolicy = refreshPolicy;
+    }
+}
@@ -0,0 +1,27 @@
+package org.meveo.elastic;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.io.SerializedString;
+
+/**
+ * Lower-cased elastic field names of the custom fields, computed once per field code. <br>
+ * The serialized form also caches the encoded bytes of the name, so generators do not encode it again.
+ */
+public final class FieldNames {
+
+    private static final Map<String, SerializedString> NAMES = new ConcurrentHashMap<>();
+
+    private FieldNames() {
+    }
+
+    public static SerializableString of(String code) {
+        return NAMES.computeIfAbsent(code, key -> new SerializedString(key.toLowerCase()));
+    }
+
+    public static String lowerCase(String code) {
+        return of(code).getValue();
+    }
+}
@@ -0,0 +1,200 @@
+package org.meveo.elastic;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+import org.apache.http.message.BasicHeader;
+
+/**
+ * Streaming gzip compression of request entities and decompression of response entities. <br>
+ * Sizes before and after compression are reported to the {@link ElasticClientMetrics} of the client.
+ */
+public final class GzipEntities {
+
+    public static final String GZIP = "gzip";
+
+    /**
+     * Bodies with a known length below this size are not worth compressing
+     */
+    private static final int MIN_COMPRESSED_LENGTH = 1024;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private GzipEntities() {
+    }
+
+    public static HttpEntity compress(HttpEntity entity, ElasticClientMetrics metrics) {
+        long length = entity.getContentLength();
+        if (length >= 0 && length < MIN_COMPRESSED_LENGTH) {
+            return entity;
+        }
+        return new CompressingEntity(entity, metrics);
+    }
+
+    public static boolean isCompressed(HttpEntity entity) {
+        Header contentEncoding = entity.getContentEncoding();
+        return contentEncoding != null && GZIP.equalsIgnoreCase(contentEncoding.getValue());
+    }
+
+    /**
+     * @return the length of the body before compression, negative if unknown
+     */
+    public static long getUncompressedLength(HttpEntity entity) {
+        if (entity instanceof CompressingEntity) {
+            return ((CompressingEntity) entity).getWrappedLength();
+        }
+        return entity.getContentLength();
+    }
+
+    public static HttpEntity decompress(HttpEntity entity, ElasticClientMetrics metrics) {
+        return new DecompressingEntity(entity, metrics);
+    }
+
+    private static class CompressingEntity extends HttpEntityWrapper {
+        private final ElasticClientMetrics metrics;
+
+        private CompressingEntity(HttpEntity wrappedEntity, ElasticClientMetrics metrics) {
+            super(wrappedEntity);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public Header getContentEncoding() {
+            return new BasicHeader("Content-Encoding", GZIP);
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public boolean isChunked() {
+            return true;
+        }
+
+        private long getWrappedLength() {
+            return wrappedEntity.getContentLength();
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            throw new UnsupportedOperationException("Compressed entity can only be written");
+        }
+
+        @Override
+        public void writeTo(OutputStream outstream) throws IOException {
+            var compressed = new CountingOutputStream(outstream, metrics.compressedRequestBytesCounter());
+            var gzip = new GZIPOutputStream(compressed, BUFFER_SIZE);
+            wrappedEntity.writeTo(new CountingOutputStream(gzip, metrics.requestBytesCounter()));
+            gzip.finish();
+            outstream.flush();
+        }
+    }
+
+    private static class DecompressingEntity extends HttpEntityWrapper {
+        private final ElasticClientMetrics metrics;
+        private InputStream content;
+
+        private DecompressingEntity(HttpEntity wrappedEntity, ElasticClientMetrics metrics) {
+            super(wrappedEntity);
+            this.metrics = metrics;
+        }
+
+        @Override
+        public Header getContentEncoding() {
+            return null;
+        }
+
+        @Override
+        public long getContentLength() {
+            return -1;
+        }
+
+        @Override
+        public InputStream getContent() throws IOException {
+            if (content == null) {
+                var compressed = new CountingInputStream(wrappedEntity.getContent(), metrics.compressedResponseBytesCounter());
+                content = new CountingInputStream(new GZIPInputStream(compressed, BUFFER_SIZE), metrics.responseBytesCounter());
+            }
+            return content;
+        }
+
+        @Override
+        public void writeTo(OutputStream outstream) throws IOException {
+            try (var input = getContent()) {
+                input.transferTo(outstream);
+            }
+        }
+    }
+
+    private static class CountingOutputStream extends FilterOutputStream {
+        private final LongAdder counter;
+
+        private CountingOutputStream(OutputStream out, LongAdder counter) {
+            super(out);
+            this.counter = counter;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            counter.increment();
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            counter.add(len);
+        }
+
+        @Override
+        public void close() throws IOException {
+            // The underlying stream belongs to the connection
+            flush();
+        }
+    }
+
+    private static class CountingInputStream extends FilterInputStream {
+        private final LongAdder counter;
+
+        private CountingInputStream(InputStream in, LongAdder counter) {
+            super(in);
+            this.counter = counter;
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = in.read();
+            if (b != -1) {
+                counter.increment();
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = in.read(b, off, len);
+            if (read > 0) {
+                counter.add(read);
+            }
+            return read;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = in.skip(n);
+            counter.add(skipped);
+            return skipped;
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package org.meveo.elastic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.meveo.admin.exception.BusinessException;
+import org.meveo.model.persistence.JacksonUtil;
+
+import com.fasterxml.jackson.databind.JsonNode;
+
+/**
+ * Groups the searches submitted within a short window in a single <code>_msearch</code> request,
+ * and dispatches the responses to each caller. <br>
+ * A batch is sent when the window started by its first search elapses, or as soon as it is full. <br>
+ * Batches are sent by their own threads, so the timers of the next windows do not wait for the responses.
+ */
+public class MultiSearchBatcher {
+
+    private final ElasticRestClient client;
+    private final long windowMicros;
+    private final int maxBatchSize;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * Unbounded, the number of batches in flight is bounded by the concurrency limiter of the client
+     */
+    private final ExecutorService senders;
+
+    private List<PendingSearch> pending = new ArrayList<>();
+    private boolean closed = false;
+
+    /**
+     * @param client       client sending the batches
+     * @param windowMicros time during which searches are collected, in microseconds
+     * @param maxBatchSize maximum number of searches in a batch
+     */
+    public MultiSearchBatcher(ElasticRestClient client, long windowMicros, int maxBatchSize) {
+        this.client = client;
+        this.windowMicros = windowMicros;
+        this.maxBatchSize = maxBatchSize;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            var thread = new Thread(runnable, "elastic-msearch-timer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.senders = Executors.newCachedThreadPool(runnable -> {
+            var thread = new Thread(runnable, "elastic-msearch");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * @param index   index to search
+     * @param routing routing key restricting the searched shards, null to search all of them
+     * @param body    search request body
+     * @return the search response, completed exceptionally if the search failed or if the batcher is closed
+     */
+    public CompletableFuture<JsonNode> submit(String index, String routing, JsonNode body) {
+        var search = new PendingSearch(index, routing, body);
+        List<PendingSearch> batch = null;
+
+        synchronized (this) {
+            if (closed) {
+                search.response.completeExceptionally(new IllegalStateException("Multi search batcher is closed"));
+                return search.response;
+            }
+            pending.add(search);
+            if (pending.size() >= maxBatchSize) {
+                batch = pending;
+                pending = new ArrayList<>();
+            } else if (pending.size() == 1) {
+                scheduler.schedule(this::flush, windowMicros, TimeUnit.MICROSECONDS);
+            }
+        }
+
+        if (batch != null) {
+            sendAsync(batch);
+        }
+        return search.response;
+    }
+
+    /**
+     * Sends the pending searches, and rejects the next ones
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+        }
+        scheduler.shutdownNow();
+        flush();
+        // Lets the batches being sent complete
+        senders.shutdown();
+    }
+
+    private void flush() {
+        List<PendingSearch> batch;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            batch = pending;
+            pending = new ArrayList<>();
+        }
+        sendAsync(batch);
+    }
+
+    private void sendAsync(List<PendingSearch> batch) {
+        try {
+            senders.execute(() -> send(batch));
+        } catch (RejectedExecutionException e) {
+            // Batch taken by a search submitted just before the batcher was closed
+            var closed = new IllegalStateException("Multi search batcher is closed");
+            batch.forEach(search -> search.response.completeExceptionally(closed));
+        }
+    }
+
+    private void send(List<PendingSearch> batch) {
+        var body = new StringBuilder();
+        for (var search : batch) {
+            var header = JacksonUtil.OBJECT_MAPPER.createObjectNode().put("index", search.index);
+            if (search.routing != null) {
+                header.put("routing", search.routing);
+            }
+            body.append(header).append('\n');
+            body.append(search.body).append('\n');
+        }
+
+        var request = client.post("/_msearch");
+        client.setBody(request, body.toString(), ElasticRestClient.APPLICATION_NDJSON);
+
+        try {
+            JsonNode json = client.execute(request, client::readTree, "Failed to execute multi search request");
+            var responses = json.path("responses");
+            for (int i = 0; i < batch.size(); i++) {
+                var response = responses.get(i);
+                if (response == null) {
+                    batch.get(i).response.completeExceptionally(new BusinessException("No response for search " + batch.get(i).body));
+                } else if (response.has("error")) {
+                    batch.get(i).response.completeExceptionally(new BusinessException("Search failed : " + response.get("error")));
+                } else {
+                    batch.get(i).response.complete(response);
+                }
+            }
+        } catch (Exception e) {
+            batch.forEach(search -> search.response.completeExceptionally(e));
+        }
+    }
+
+    private static class PendingSearch {
+        private final String index;
+        private final String routing;
+        private final JsonNode body;
+        private final CompletableFuture<JsonNode> response = new CompletableFuture<>();
+
+        private PendingSearch(String index, String routing, JsonNode body) {
+            this.index = index;
+            this.routing = routing;
+            this.body = body;
+        }
+    }
+}
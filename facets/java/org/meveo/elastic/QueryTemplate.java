@@ -0,0 +1,92 @@
+package org.meveo.elastic;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.meveo.model.persistence.JacksonUtil;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.io.JsonStringEncoder;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.TextNode;
+
+/**
+ * A query serialized once, with parameter slots. <br>
+ * Binding the parameters only concatenates the serialized fragments with the parameter values, 
+ * so the query tree is neither rebuilt nor serialized again. Instances are immutable and can be shared between threads.
+ */
+public final class QueryTemplate {
+
+    private static final Pattern SLOT = Pattern.compile("\"\\{\\{slot:(\\d+)\\}\\}\"");
+
+    private final String[] fragments;
+    private final int[] slots;
+    private final int length;
+
+    private QueryTemplate(String[] fragments, int[] slots) {
+        this.fragments = fragments;
+        this.slots = slots;
+
+        int length = 0;
+        for (String fragment : fragments) {
+            length += fragment.length();
+        }
+        this.length = length;
+    }
+
+    /**
+     * @param index index of the parameter, as given to {@link #bind(Object...)}
+     * @return the placeholder of the parameter, to put in the query tree before compiling it
+     */
+    public static JsonNode slot(int index) {
+        return TextNode.valueOf("{{slot:" + index + "}}");
+    }
+
+    public static QueryTemplate compile(JsonNode query) {
+        String json = query.toString();
+        List<String> fragments = new ArrayList<>();
+        List<Integer> slots = new ArrayList<>();
+
+        var matcher = SLOT.matcher(json);
+        int start = 0;
+        while (matcher.find()) {
+            fragments.add(json.substring(start, matcher.start()));
+            slots.add(Integer.parseInt(matcher.group(1)));
+            start = matcher.end();
+        }
+        fragments.add(json.substring(start));
+
+        return new QueryTemplate(fragments.toArray(new String[0]), slots.stream().mapToInt(Integer::intValue).toArray());
+    }
+
+    /**
+     * @param parameters values of the slots, by index
+     * @return the query, as JSON
+     */
+    public String bind(Object... parameters) {
+        var builder = new StringBuilder(length + 16 * slots.length);
+        for (int i = 0; i < slots.length; i++) {
+            builder.append(fragments[i]);
+            appendValue(builder, parameters[slots[i]]);
+        }
+        builder.append(fragments[fragments.length - 1]);
+        return builder.toString();
+    }
+
+    private static void appendValue(StringBuilder builder, Object value) {
+        if (value == null || value instanceof Number || value instanceof Boolean) {
+            builder.append(value);
+        } else if (value instanceof CharSequence) {
+            builder.append('"');
+            JsonStringEncoder.getInstance().quoteAsString((CharSequence) value, builder);
+            builder.append('"');
+        } else {
+            try {
+                builder.append(JacksonUtil.OBJECT_MAPPER.writeValueAsString(value));
+            } catch (JsonProcessingException e) {
+                throw new IllegalArgumentException("Can't bind parameter " + value, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,35 @@
+package org.meveo.elastic;
+
+/**
+ * When the changes made by a write become visible to searches
+ */
+public enum RefreshPolicy {
+
+    /**
+     * At the next periodic refresh of the index
+     */
+    FALSE("false"),
+
+    /**
+     * The request returns once the changes are visible, without forcing a refresh
+     */
+    WAIT_FOR("wait_for"),
+
+    /**
+     * The affected shards are refreshed immediately
+     */
+    TRUE("true");
+
+    private final String value;
+
+    private RefreshPolicy(String value) {
+        this.value = value;
+    }
+
+    /**
+     * @return the value of the <code>refresh</code> request parameter
+     */
+    public String getValue() {
+        return value;
+    }
+}
@@ -0,0 +1,56 @@
+package org.meveo.elastic;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A page of search hits, along with the total number of matching documents. <br>
+ * Pages are cached and shared between callers, so they are unmodifiable.
+ */
+public class SearchPage {
+
+    private final List<Map<String, Object>> hits;
+    private final long total;
+    private final boolean totalExact;
+
+    public SearchPage(List<Map<String, Object>> hits, long total, boolean totalExact) {
+        List<Map<String, Object>> copy = new ArrayList<>(hits.size());
+        hits.forEach(hit -> copy.add(Collections.unmodifiableMap(new HashMap<>(hit))));
+        this.hits = Collections.unmodifiableList(copy);
+        this.total = total;
+        this.totalExact = totalExact;
+    }
+
+    /**
+     * @return the unmodifiable hits
+     */
+    public List<Map<String, Object>> getHits() {
+        return hits;
+    }
+
+    /**
+     * @return a modifiable copy of the hits, for the callers that complete or merge them
+     */
+    public List<Map<String, Object>> copyHits() {
+        List<Map<String, Object>> copy = new ArrayList<>(hits.size());
+        hits.forEach(hit -> copy.add(new HashMap<>(hit)));
+        return copy;
+    }
+
+    /**
+     * @return the number of matching documents, or a lower bound of it if {@link #isTotalExact()} is false
+     */
+    public long getTotal() {
+        return total;
+    }
+
+    /**
+     * @return false if the total exceeded the <code>track_total_hits</code> threshold and is only a lower bound
+     */
+    public boolean isTotalExact() {
+        return totalExact;
+    }
+}
@@ -0,0 +1,131 @@
+package org.meveo.elastic;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Cache of raw search responses, bounded in number of entries and in memory. <br>
+ * Fresh entries are returned as is. Stale entries are still returned during a grace period, while
+ * they are reloaded in background. Entries read before the last write on their index are never returned. <br>
+ * Writes are only known when made through this JVM : documents written by another node or another application
+ * may be returned stale until the entry expires, during the TTL and the grace period.
+ */
+public class SearchResultCache {
+
+    private static Logger LOG = LoggerFactory.getLogger(SearchResultCache.class);
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final long ttlMillis;
+    private final long staleMillis;
+    private final Executor refreshExecutor;
+
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+
+    /**
+     * @param maxEntries      maximum number of responses kept
+     * @param maxBytes        maximum memory used by the responses
+     * @param ttlMillis       time during which a response is fresh
+     * @param staleMillis     time after expiration during which a response is returned while being reloaded
+     * @param refreshExecutor executor of the background reloads
+     */
+    public SearchResultCache(int maxEntries, long maxBytes, long ttlMillis, long staleMillis, Executor refreshExecutor) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+        this.staleMillis = staleMillis;
+        this.refreshExecutor = refreshExecutor;
+    }
+
+    /**
+     * @param key    normalized key of the search
+     * @param index  index searched, used to discard the responses read before a write
+     * @param loader executes the search, the response is not cached if it throws
+     * @return the cached or loaded response
+     */
+    public String get(String key, String index, Callable<String> loader) throws Exception {
+        long now = System.currentTimeMillis();
+        long generation = WriteGenerations.get(index);
+        Entry entry;
+
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+
+        if (entry != null && entry.generation == generation) {
+            long age = now - entry.loadedAt;
+            if (age < ttlMillis) {
+                return entry.value;
+            }
+            if (age < ttlMillis + staleMillis) {
+                if (entry.refreshing.compareAndSet(false, true)) {
+                    refreshExecutor.execute(() -> {
+                        try {
+                            load(key, index, loader);
+                        } catch (Exception e) {
+                            entry.refreshing.set(false);
+                            LOG.warn("Failed to refresh search {}", key, e);
+                        }
+                    });
+                }
+                return entry.value;
+            }
+        }
+
+        return load(key, index, loader);
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    private String load(String key, String index, Callable<String> loader) throws Exception {
+        // Read before searching, so that a write made during the search invalidates the response
+        long generation = WriteGenerations.get(index);
+        String value = loader.call();
+        put(key, new Entry(value, generation, System.currentTimeMillis()));
+        return value;
+    }
+
+    private synchronized void put(String key, Entry entry) {
+        var previous = entries.put(key, entry);
+        if (previous != null) {
+            bytes -= previous.size();
+        }
+        bytes += entry.size();
+
+        Iterator<Entry> eldest = entries.values().iterator();
+        while ((entries.size() > maxEntries || bytes > maxBytes) && eldest.hasNext()) {
+            bytes -= eldest.next().size();
+            eldest.remove();
+        }
+    }
+
+    private static class Entry {
+        private final String value;
+        private final long generation;
+        private final long loadedAt;
+        private final AtomicBoolean refreshing = new AtomicBoolean();
+
+        private Entry(String value, long generation, long loadedAt) {
+            this.value = value;
+            this.generation = generation;
+            this.loadedAt = loadedAt;
+        }
+
+        /**
+         * @return approximate memory used by the response
+         */
+        private long size() {
+            return 2L * value.length();
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package org.meveo.elastic;
+
+import org.apache.http.entity.ContentType;
+import org.meveo.model.persistence.JacksonUtil;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.deser.DefaultDeserializationContext;
+import com.fasterxml.jackson.databind.ser.DefaultSerializerProvider;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+/**
+ * Format of the documents and responses exchanged with elastic. <br>
+ * NDJSON requests (bulk, multi search) are always sent as JSON.
+ */
+public enum WireFormat {
+
+    JSON("application/json") {
+        @Override
+        protected ObjectMapper createMapper() {
+            return JacksonUtil.OBJECT_MAPPER;
+        }
+    },
+
+    SMILE("application/smile") {
+        @Override
+        protected ObjectMapper createMapper() {
+            return configuredLikeJson(new SmileFactory());
+        }
+    },
+
+    CBOR("application/cbor") {
+        @Override
+        protected ObjectMapper createMapper() {
+            return configuredLikeJson(new CBORFactory());
+        }
+    };
+
+    private final String mimeType;
+    private final ContentType contentType;
+
+    /**
+     * Binary formats factories are only loaded when used
+     */
+    private volatile ObjectMapper mapper;
+
+    private WireFormat(String mimeType) {
+        this.mimeType = mimeType;
+        this.contentType = ContentType.create(mimeType);
+    }
+
+    protected abstract ObjectMapper createMapper();
+
+    /**
+     * @return a mapper writing in the format of the factory, with the same modules and features as {@link JacksonUtil#OBJECT_MAPPER},
+     *         so values are serialized the same way whatever the format
+     */
+    private static ObjectMapper configuredLikeJson(JsonFactory factory) {
+        ObjectMapper json = JacksonUtil.OBJECT_MAPPER;
+        var mapper = new ObjectMapper(factory, (DefaultSerializerProvider) json.getSerializerProvider(),
+            (DefaultDeserializationContext) json.getDeserializationContext());
+        mapper.setSerializerFactory(json.getSerializerFactory());
+        mapper.setConfig(json.getSerializationConfig());
+        mapper.setConfig(json.getDeserializationConfig());
+        return mapper;
+    }
+
+    public ObjectMapper getMapper() {
+        if (mapper == null) {
+            synchronized (this) {
+                if (mapper == null) {
+                    mapper = createMapper();
+                }
+            }
+        }
+        return mapper;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    public ContentType getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @param contentType value of a Content-Type header, may be null
+     * @return the corresponding format, {@link #JSON} if not recognized
+     */
+    public static WireFormat fromContentType(String contentType) {
+        if (contentType != null) {
+            for (WireFormat format : values()) {
+                if (contentType.regionMatches(true, 0, format.mimeType, 0, format.mimeType.length())) {
+                    return format;
+                }
+            }
+        }
+        return JSON;
+    }
+}
@@ -0,0 +1,26 @@
+package org.meveo.elastic;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the writes made to each index. <br>
+ * Cached search results hold the generation of the index they were read at, and are ignored once it changed.
+ */
+public final class WriteGenerations {
+
+    private static final Map<String, AtomicLong> GENERATIONS = new ConcurrentHashMap<>();
+
+    private WriteGenerations() {
+    }
+
+    public static long get(String index) {
+        var generation = GENERATIONS.get(index);
+        return generation == null ? 0 : generation.get();
+    }
+
+    public static void increment(String index) {
+        GENERATIONS.computeIfAbsent(index, key -> new AtomicLong()).incrementAndGet();
+    }
+}
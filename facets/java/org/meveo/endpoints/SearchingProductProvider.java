@@ -1,7 +1,14 @@
 package org.meveo.endpoints;
 
 import java.util.Map;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.lang.String;
 import javax.inject.Inject;
 import org.apache.http.util.EntityUtils;
@@ -13,11 +20,23 @@ import org.meveo.commons.utils.ParamBeanFactory;
 import org.meveo.model.persistence.JacksonUtil;
 import org.meveo.elastic.ElasticQueryBuilder;
 import org.meveo.elastic.ElasticRestClient;
+import org.meveo.elastic.SearchResultCache;
 
 public class SearchingProductProvider extends Script {
 
-    private ElasticQueryBuilder queryBuilder = new ElasticQueryBuilder();
-    
+    /**
+     * Clients shared by all the requests, by connection
+     */
+    private static final Map<String, ElasticRestClient> CLIENTS = new ConcurrentHashMap<>();
+
+    private static final ExecutorService REFRESH_EXECUTOR = Executors.newFixedThreadPool(2, runnable -> {
+        var thread = new Thread(runnable, "es-products-cache-refresh");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static volatile SearchResultCache cache;
+
     @Inject
     private ParamBeanFactory paramBeanFactory;
 
@@ -67,6 +86,54 @@ public class SearchingProductProvider extends Script {
 
     private Integer ratingMin;
 
+    /**
+     * <code>keyword</code> (default), <code>knn</code> or <code>hybrid</code>
+     */
+    private String searchMode;
+
+    private String vectorField;
+
+    private Double[] queryVector;
+
+    /**
+     * Id of a product whose vector is used as query vector, to search similar products
+     */
+    private String similarToId;
+
+    private Integer numCandidates;
+
+    private Double keywordWeight;
+
+    private Double vectorWeight;
+
+    public void setSearchMode(String searchMode) {
+        this.searchMode = searchMode;
+    }
+
+    public void setVectorField(String vectorField) {
+        this.vectorField = vectorField;
+    }
+
+    public void setQueryVector(Double[] queryVector) {
+        this.queryVector = queryVector;
+    }
+
+    public void setSimilarToId(String similarToId) {
+        this.similarToId = similarToId;
+    }
+
+    public void setNumCandidates(Integer numCandidates) {
+        this.numCandidates = numCandidates;
+    }
+
+    public void setKeywordWeight(Double keywordWeight) {
+        this.keywordWeight = keywordWeight;
+    }
+
+    public void setVectorWeight(Double vectorWeight) {
+        this.vectorWeight = vectorWeight;
+    }
+
     public void setLocationRadiusInKm(Double locationRadiusInKm) {
         this.locationRadiusInKm = locationRadiusInKm;
     }
@@ -136,6 +203,23 @@ public class SearchingProductProvider extends Script {
         _port     = config.getProperty("elasticsearch.port");
         _username = config.getProperty("elasticsearch.username");
         _password = config.getProperty("elasticsearch.password");
+
+        if (vectorField == null) {
+            vectorField = config.getProperty("elasticsearch.products.vectorField", "embedding");
+        }
+
+        if (cache == null) {
+            synchronized (SearchingProductProvider.class) {
+                if (cache == null) {
+                    cache = new SearchResultCache(
+                        Integer.parseInt(config.getProperty("elasticsearch.searchCache.maxEntries", "10000")),
+                        Long.parseLong(config.getProperty("elasticsearch.searchCache.maxBytes", "67108864")),
+                        Long.parseLong(config.getProperty("elasticsearch.searchCache.ttl", "5000")),
+                        Long.parseLong(config.getProperty("elasticsearch.searchCache.stale", "30000")),
+                        REFRESH_EXECUTOR);
+                }
+            }
+        }
     }
 
     @Override
@@ -150,26 +234,122 @@ public class SearchingProductProvider extends Script {
         }
     }
 
-    private String query(int pageNumber, int pageSize, String keyword, String indexName, String fields) throws BusinessException {
-        var client = new ElasticRestClient(_protocol + "://" + _host, Integer.parseInt(_port), _username, _password);
-        
-        var request = client.get("/%s/_search", indexName.toLowerCase());
+    private String query(int pageNumber, int pageSize, String keyword, String indexName, String fields) throws Exception {
+        String connection = _protocol + "://" + _username + "@" + _host + ":" + _port;
+        var client = CLIENTS.computeIfAbsent(connection, key -> new ElasticRestClient(_protocol + "://" + _host, Integer.parseInt(_port), _username, _password));
+        String index = indexName.toLowerCase();
+
+        String mode = searchMode == null ? "keyword" : searchMode.toLowerCase();
+        String searchKeyword = mode.equals("knn") ? null : normalize(keyword);
+
+        // The loader may run later to refresh the entry, so it only captures immutable values
+        Callable<String> queryGenerator;
+        switch (mode) {
+            case "keyword":
+                String keywordQuery = generateQuery(pageNumber, pageSize, searchKeyword, indexName, fields);
+                queryGenerator = () -> keywordQuery;
+                break;
+            case "knn":
+            case "hybrid":
+                // The vector of a similar product is only read on a cache miss
+                ElasticQueryBuilder builder = vectorQueryBuilder(pageNumber, pageSize, searchKeyword);
+                String field = vectorField;
+                Double[] vector = queryVector;
+                String productId = similarToId;
+                queryGenerator = () -> builder.withVector(field, getQueryVector(client, index, field, vector, productId)).build();
+                break;
+            default:
+                throw new BusinessException("Unknown search mode " + searchMode);
+        }
 
-        var query = generateQuery(pageNumber, pageSize, keyword, indexName, fields);
-        
-        client.setBody(request, query);
+        return cache.get(getCacheKey(index, mode, searchKeyword, pageNumber, pageSize), index, () -> {
+            String query = queryGenerator.call();
+
+            // Also let the shards cache the hits of the popular searches
+            var request = client.get("/%s/_search?request_cache=true", encode(index));
+            client.setBody(request, query);
+
+            return client.execute(
+                request, 
+                response -> {
+                    String content = EntityUtils.toString(response.getEntity(), "UTF-8");
+                    if (response.getStatusLine().getStatusCode() != 200) {
+                        throw new BusinessException(content);
+                    }
+                    return content;
+                },
+                "{\"error\": \"Failed to read response\"}");
+        });
+    }
 
-        String content = client.execute(
-            request, 
-            response -> {
-                return EntityUtils.toString(response.getEntity(), "UTF-8");
-            },
-            "{\"error\": \"Failed to read response\"}");
-        return content;
+    /**
+     * @return key of the search in the cache, made of its inputs since the query of a similar products search needs the product vector
+     */
+    private String getCacheKey(String index, String mode, String searchKeyword, int pageNumber, int pageSize) {
+        var key = new StringBuilder(index)
+            .append('\n').append(mode)
+            .append('\n').append(searchKeyword)
+            .append('\n').append(Boolean.TRUE.equals(isAvailable))
+            .append('\n').append(priceMin)
+            .append('\n').append(priceMax)
+            .append('\n').append(pageNumber)
+            .append('\n').append(pageSize);
+        if (!mode.equals("keyword")) {
+            key.append('\n').append(vectorField)
+                .append('\n').append(queryVector == null ? "similarTo " + similarToId : Arrays.toString(queryVector))
+                .append('\n').append(numCandidates)
+                .append('\n').append(keywordWeight)
+                .append('\n').append(vectorWeight);
+        }
+        return key.toString();
+    }
+
+    /**
+     * @return the given query vector, or the vector of the product whose similar products are searched
+     */
+    private static double[] getQueryVector(ElasticRestClient client, String index, String vectorField, Double[] queryVector, String similarToId) throws BusinessException {
+        if (queryVector != null) {
+            double[] vector = new double[queryVector.length];
+            for (int i = 0; i < vector.length; i++) {
+                vector[i] = queryVector[i];
+            }
+            return vector;
+        }
+
+        if (similarToId == null) {
+            throw new BusinessException("A query vector or a product id is required for vector search");
+        }
+
+        var request = client.get("/%s/_doc/%s?_source_includes=%s", encode(index), encode(similarToId), encode(vectorField));
+        var vector = client.execute(request, response -> client.readTree(response).path("_source").path(vectorField), 
+            "Failed to read vector of product " + similarToId);
+        if (!vector.isArray()) {
+            throw new BusinessException("Product " + similarToId + " has no " + vectorField + " vector");
+        }
+        return JacksonUtil.OBJECT_MAPPER.convertValue(vector, double[].class);
+    }
+
+    /**
+     * @return the value encoded to be used as a path segment or a query parameter, as it comes from the request or the configuration
+     */
+    private static String encode(String value) {
+        // Spaces are only decoded from '+' in query strings
+        return URLEncoder.encode(value, StandardCharsets.UTF_8).replace("+", "%20");
+    }
+
+    /**
+     * Differently spaced keywords share the same cache entry. The case is kept, as it matters for keyword sub-fields
+     */
+    private static String normalize(String keyword) {
+        if (keyword == null) {
+            return null;
+        }
+        return keyword.trim().replaceAll("\\s+", " ");
     }
 
     public String generateQuery(int pageNumber, int pageSize, String searchKeyword, String indexName, String fields) {
-        String query = queryBuilder.withKeyword(searchKeyword)
+        String query = ElasticQueryBuilder.create()
+                                    .withKeyword(searchKeyword)
                                     .withFilterIsAvailable(isAvailable)
                                     .withFilterPriceRange(priceMin, priceMax)                                    
                                     .withPageSize(pageSize)
@@ -177,5 +357,25 @@ public class SearchingProductProvider extends Script {
                                     .build();
         return query;
     }
+
+    /**
+     * @return the builder of a knn or hybrid query, without its vector
+     */
+    private ElasticQueryBuilder vectorQueryBuilder(int pageNumber, int pageSize, String searchKeyword) {
+        var builder = ElasticQueryBuilder.create()
+                                    .withKeyword(searchKeyword)
+                                    .withExcludedId(queryVector == null ? similarToId : null)
+                                    .withFilterIsAvailable(isAvailable)
+                                    .withFilterPriceRange(priceMin, priceMax)
+                                    .withPageSize(pageSize)
+                                    .withPageNumber(pageNumber);
+        if (numCandidates != null) {
+            builder = builder.withNumCandidates(numCandidates);
+        }
+        if (keywordWeight != null || vectorWeight != null) {
+            builder = builder.withHybridWeights(keywordWeight == null ? 1.0 : keywordWeight, vectorWeight == null ? 1.0 : vectorWeight);
+        }
+        return builder;
+    }
     
 }
@@ -2,12 +2,23 @@ package org.meveo.persistence.impl;
 
 import java.io.File;
 import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 
@@ -17,8 +28,22 @@ import javax.persistence.PersistenceException;
 import org.meveo.admin.exception.BusinessException;
 import org.meveo.admin.util.pagination.PaginationConfiguration;
 import org.meveo.api.exception.EntityDoesNotExistsException;
+import org.meveo.commons.utils.ParamBeanFactory;
+import org.meveo.elastic.AttachmentEntity;
+import org.meveo.elastic.DocumentEntity;
+import org.meveo.elastic.ElasticBulkRequest;
+import org.meveo.elastic.ElasticClientMetrics;
+import org.meveo.elastic.ElasticClientSettings;
 import org.meveo.elastic.ElasticRestClient;
+import org.meveo.elastic.ElasticRestClient.ErrorConsumer;
+import org.meveo.elastic.ElasticTransaction;
+import org.meveo.elastic.ExpiringCache;
+import org.meveo.elastic.FieldNames;
+import org.meveo.elastic.RefreshPolicy;
+import org.meveo.elastic.SearchPage;
+import org.meveo.elastic.WriteGenerations;
 import org.meveo.model.crm.CustomFieldTemplate;
+import org.meveo.model.crm.custom.CustomFieldStorageTypeEnum;
 import org.meveo.model.crm.custom.CustomFieldTypeEnum;
 import org.meveo.model.customEntities.CustomEntityInstance;
 import org.meveo.model.customEntities.CustomEntityTemplate;
@@ -33,11 +58,14 @@ import org.meveo.persistence.StorageImpl;
 import org.meveo.persistence.StorageQuery;
 import org.meveo.service.crm.impl.CustomFieldInstanceService;
 import org.meveo.service.crm.impl.CustomFieldTemplateService;
+import org.meveo.service.custom.CustomRelationshipTemplateService;
 import org.meveo.service.script.Script;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
 
 public class ElasticStorageImpl extends Script implements StorageImpl {
 
@@ -45,10 +73,94 @@ public class ElasticStorageImpl extends Script implements StorageImpl {
 	
 	private CustomFieldInstanceService cfiService = getCDIBean(CustomFieldInstanceService.class);
 
+	private CustomRelationshipTemplateService crtService = getCDIBean(CustomRelationshipTemplateService.class);
+
+	private ParamBeanFactory paramBeanFactory = getCDIBean(ParamBeanFactory.class);
+
 	private Map<String, ElasticRestClient> clients = new ConcurrentHashMap<>();
 
+	/**
+	 * Transactions of the current thread, by storage configuration code
+	 */
+	private ThreadLocal<Map<String, ElasticTransaction>> transactions = ThreadLocal.withInitial(HashMap::new);
+
+	/**
+	 * Storage configurations for which the attachment pipeline has been registered
+	 */
+	private Set<String> attachmentPipelines = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Binaries indices created, by storage configuration code and index name
+	 */
+	private Set<String> binariesIndices = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * Search pages and totals recently read, by storage configuration code
+	 */
+	private Map<String, ExpiringCache<String, SearchPage>> searchCaches = new ConcurrentHashMap<>();
+
+	private Map<String, ExpiringCache<String, Long>> countCaches = new ConcurrentHashMap<>();
+
+	/**
+	 * Routing keys of the documents recently written, by storage configuration code then index and uuid. 
+	 * Searches only see the documents indexed before the last refresh, these ones can be read in realtime instead
+	 */
+	private Map<String, ExpiringCache<String, String>> recentRoutings = new ConcurrentHashMap<>();
+
+	/**
+	 * Maximum number of binaries sent at the same time to the ingest pipeline
+	 */
+	private static final int BINARIES_INGESTION_CONCURRENCY = 4;
+
+	/**
+	 * Shared by all the instances of the script, its daemon threads do not prevent the undeployment
+	 */
+	private static final ExecutorService BINARIES_EXECUTOR = Executors.newFixedThreadPool(BINARIES_INGESTION_CONCURRENCY, runnable -> {
+		var thread = new Thread(runnable, "elastic-binaries");
+		thread.setDaemon(true);
+		return thread;
+	});
+
 	private static Logger LOG = LoggerFactory.getLogger(ElasticStorageImpl.class);
 
+	/**
+	 * Maximum number of target uuids added to a source document by a single partial update
+	 */
+	private static final int RELATION_TARGETS_PER_UPDATE = 1000;
+
+	/**
+	 * Maximum number of partial updates sent in a single bulk request
+	 */
+	private static final int RELATION_UPDATES_PER_BULK = 500;
+
+	/**
+	 * Maximum number of search pages and totals cached per storage configuration
+	 */
+	private static final int SEARCH_CACHE_SIZE = 1000;
+
+	/**
+	 * Maximum number of routing keys of recently written documents kept per storage configuration
+	 */
+	private static final int RECENT_ROUTINGS_SIZE = 10000;
+
+	/**
+	 * Time during which the routing key of a written document is kept, longer than the refresh interval
+	 */
+	private static final long RECENT_ROUTINGS_TTL = 5 * 60 * 1000;
+
+	private static final String ATTACHMENT_PIPELINE = "mv-attachment";
+
+	/**
+	 * Prefix of the properties naming the field used as routing key of a CET, followed by the CET code
+	 */
+	private static final String ROUTING_PROPERTY = "elasticsearch.routing.";
+
+	private static final String ADD_RELATION_SCRIPT = 
+			"def field = params.field;"
+			+ "if (ctx._source[field] == null) { ctx._source[field] = new ArrayList(); }"
+			+ "else if (!(ctx._source[field] instanceof List)) { def value = ctx._source[field]; ctx._source[field] = new ArrayList(); ctx._source[field].add(value); }"
+			+ "for (def target : params.targets) { if (!ctx._source[field].contains(target)) { ctx._source[field].add(target); } }";
+
 	private static DBStorageType storageType() {
 		DBStorageType dbStorageType = new DBStorageType();
 		dbStorageType.setCode("ELASTIC");
@@ -59,7 +171,7 @@ public class ElasticStorageImpl extends Script implements StorageImpl {
 		List<String> result = new ArrayList<>();
 		
 		for (var conf : repository.getStorageConfigurations(storageType()) ){
-			ElasticRestClient client = beginTransaction(conf, 0);
+			ElasticRestClient client = getClient(conf);
 			
 			var queryJson = JacksonUtil.OBJECT_MAPPER.createObjectNode();
 			queryJson.putObject("query")
@@ -72,12 +184,12 @@ public class ElasticStorageImpl extends Script implements StorageImpl {
 			.add(cft.toLowerCase() + "._3gram");
 			
 			var request = client.get("/%s/_search", cet.toLowerCase());
-			client.setBody(request, queryJson.toString());
+			client.setContent(request, queryJson);
 			
 			LOG.info("Autocomplete query = {}", queryJson);
 			
 			result.addAll(client.execute(request, response -> {
-				var responseJson = JacksonUtil.OBJECT_MAPPER.readTree(response.getEntity().getContent());
+				var responseJson = client.readTree(response);
 				return responseJson.get("hits").get("hits").findValuesAsText(cft.toLowerCase());
 			}, "Failed to read response"));
 		}
@@ -87,25 +199,231 @@ public class ElasticStorageImpl extends Script implements StorageImpl {
 
 	@Override
 	public boolean exists(IStorageConfiguration repository, CustomEntityTemplate cet, String uuid) {
-		ElasticRestClient client = beginTransaction(repository, 0);
+		ElasticRestClient client = getClient(repository);
+		String index = cet.getCode().toLowerCase();
+
+		boolean exists;
+		if (getRoutingField(cet) != null) {
+			exists = findHitById(repository, client, index, uuid, false) != null;
+		} else {
+			exists = client.head("/%s/_doc/%s", index, uuid) == 200;
+		}
+		LOG.info("Entity exists {} = {}", uuid, exists);
+		return exists;
+	}
+
+	/**
+	 * @return whether the document exists, looking only on the shard of its routing key
+	 */
+	private boolean exists(ElasticRestClient client, String index, String uuid, String routing) {
+		if (routing == null) {
+			return client.head("/%s/_doc/%s", index, uuid) == 200;
+		}
+		return client.head("/%s/_doc/%s?routing=%s", index, uuid, encode(routing)) == 200;
+	}
+
+	/**
+	 * @return the code of the field whose value routes the documents of the CET to a shard, 
+	 * 		or null if they are routed by uuid
+	 */
+	private String getRoutingField(CustomEntityTemplate cet) {
+		String field = paramBeanFactory.getInstance().getProperty(ROUTING_PROPERTY + cet.getCode(), null);
+		return field == null || field.isBlank() ? null : field;
+	}
+
+	/**
+	 * @return the routing key of the entity, or null if its CET is routed by uuid
+	 */
+	private String getRouting(CustomEntityInstance cei) {
+		String field = getRoutingField(cei.getCet());
+		if (field == null) {
+			return null;
+		}
+
+		Object value = cei.getValues(storageType()).get(field);
+		if (value == null) {
+			throw new PersistenceException("Routing field " + field + " of " + cei.getCetCode() + " " + cei.getUuid() + " is empty");
+		}
+		return String.valueOf(value);
+	}
+
+	/**
+	 * @return the routing key restricting the search to a single shard, when the query filters on an exact value of the routing field
+	 */
+	private String getRouting(StorageQuery query) {
+		String field = getRoutingField(query.getCet());
+		if (field == null || query.getFilters() == null) {
+			return null;
+		}
+
+		Object value = query.getFilters().get(field);
+		return isExactValue(value) ? String.valueOf(value) : null;
+	}
+
+	/**
+	 * @return whether a filter on the routing field is matched with a term query : a single value, without wildcard
+	 */
+	private static boolean isExactValue(Object value) {
+		if (value == null || value instanceof Collection) {
+			return false;
+		}
+		String string = String.valueOf(value);
+		return string.indexOf('*') < 0 && string.indexOf('?') < 0;
+	}
+
+	/**
+	 * Looks for documents by id, for indices whose routing keys are not known by the caller. <br>
+	 * Documents recently written through this storage are read in realtime on the shard of their routing key. 
+	 * The others are searched on every shard, a search only seeing the documents indexed before the last refresh.
+	 * 
+	 * @return the hits, by id
+	 * @throws PersistenceException if a lookup fails
+	 */
+	private Map<String, JsonNode> findHitsByIds(IStorageConfiguration conf, ElasticRestClient client, String index, Collection<String> uuids, boolean withSource) {
+		var routings = getRecentRoutings(conf);
+		Map<String, String> known = new HashMap<>();
+		List<String> unknown = new ArrayList<>();
+		for (String uuid : uuids) {
+			String routing = routings.get(index + "/" + uuid);
+			if (routing == null) {
+				unknown.add(uuid);
+			} else {
+				known.put(uuid, routing);
+			}
+		}
+
+		Map<String, JsonNode> hits = new HashMap<>();
+		if (!known.isEmpty()) {
+			hits.putAll(getByIds(client, index, known, withSource));
+		}
+		if (!unknown.isEmpty()) {
+			hits.putAll(searchByIds(client, index, unknown, withSource));
+		}
+		return hits;
+	}
+
+	/**
+	 * Realtime <code>_mget</code> of documents whose routing keys are known
+	 */
+	private Map<String, JsonNode> getByIds(ElasticRestClient client, String index, Map<String, String> routings, boolean withSource) {
+		var mgetRequest = JacksonUtil.OBJECT_MAPPER.createObjectNode();
+		var docs = mgetRequest.putArray("docs");
+		routings.forEach((uuid, routing) -> docs.addObject()
+			.put("_id", uuid)
+			.put("routing", routing)
+			.put("_source", withSource));
+
+		var request = client.post("/%s/_mget", index);
+		client.setContent(request, mgetRequest);
+
+		return client.execute(request, response -> {
+			Map<String, JsonNode> result = new HashMap<>();
+			client.readTree(response).path("docs").forEach(doc -> {
+				if (doc.path("found").asBoolean()) {
+					result.put(doc.get("_id").asText(), doc);
+				}
+			});
+			return result;
+		}, failWith("Failed to get documents of " + index + " by id"));
+	}
+
+	private Map<String, JsonNode> searchByIds(ElasticRestClient client, String index, Collection<String> uuids, boolean withSource) {
+		var searchRequest = JacksonUtil.OBJECT_MAPPER.createObjectNode();
+		var values = searchRequest.putObject("query")
+			.putObject("ids")
+			.putArray("values");
+		uuids.forEach(values::add);
+		searchRequest.put("size", uuids.size());
+		searchRequest.put("_source", withSource);
+
+		var request = client.get("/%s/_search", index);
+		client.setContent(request, searchRequest);
+
+		return client.execute(request, response -> {
+			Map<String, JsonNode> result = new HashMap<>();
+			client.readTree(response).path("hits").path("hits")
+				.forEach(hit -> result.put(hit.get("_id").asText(), hit));
+			return result;
+		}, failWith("Failed to look for documents of " + index + " by id"));
+	}
 
-		int status = client.head("/%s/_doc/%s", cet.getCode().toLowerCase(), uuid);
-		LOG.info("Entity exists {} = {}", uuid, status == 200);
-		return status == 200;
+	private JsonNode findHitById(IStorageConfiguration conf, ElasticRestClient client, String index, String uuid, boolean withSource) {
+		return findHitsByIds(conf, client, index, List.of(uuid), withSource).get(uuid);
 	}
 
-	private String buildSearchRequest(StorageQuery query, Map<String, CustomFieldTemplate> fields) {
+	/**
+	 * Error handler of the reads made by methods that cannot throw a checked exception
+	 */
+	private static ErrorConsumer failWith(String message) {
+		return e -> {
+			throw new PersistenceException(message, e);
+		};
+	}
+
+	private ExpiringCache<String, String> getRecentRoutings(IStorageConfiguration conf) {
+		return recentRoutings.computeIfAbsent(conf.getCode(), code -> new ExpiringCache<>(RECENT_ROUTINGS_SIZE, RECENT_ROUTINGS_TTL));
+	}
+
+	/**
+	 * Keeps the routing key of a written document, so that it can be read before the next refresh
+	 */
+	private void rememberRouting(IStorageConfiguration conf, String index, String uuid, String routing) {
+		if (routing != null) {
+			getRecentRoutings(conf).put(index + "/" + uuid, routing);
+		}
+	}
+
+	private static String getRouting(JsonNode hit) {
+		var routing = hit.get("_routing");
+		return routing == null ? null : routing.asText();
+	}
+
+	private static String encode(String value) {
+		return URLEncoder.encode(value, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * @return the query string parameter routing a write, to be appended to a query string
+	 */
+	private static String routingParameter(String routing) {
+		return routing == null ? "" : "&routing=" + encode(routing);
+	}
+
+	private ObjectNode buildSearchRequest(StorageQuery query, Map<String, CustomFieldTemplate> fields) {
 		var json = JacksonUtil.OBJECT_MAPPER.createObjectNode();
 
-		var queries = json.putObject("query")
-			.putObject("bool")
-			.putArray("must");
+		var bool = json.putObject("query")
+			.putObject("bool");
+		var queries = bool.putArray("must");
+
+		if (query.getFilters() == null) {
+			return json;
+		}
 
+		String routingField = getRoutingField(query.getCet());
 		query.getFilters().forEach((filterKey, filterValue) -> {
 			if (!filterKey.equals("uuid") && filterValue != null) {
 				var cft = fields.get(filterKey);
 
-				if (cft.getFieldType() == CustomFieldTypeEnum.STRING) {
+				if (cft == null) {
+					// Not a field of the CET : filter on the denormalized target uuids of a relation
+					if (!isRelationOf(filterKey, query.getCet())) {
+						throw new PersistenceException("Unknown filter " + filterKey + " : neither a field nor a relationship of " + query.getCet().getCode());
+					}
+					var relationFilter = bool.withArray("filter").addObject();
+					if (filterValue instanceof Collection) {
+						var terms = relationFilter.putObject("terms").putArray(filterKey.toLowerCase());
+						((Collection<?>) filterValue).forEach(value -> terms.add(String.valueOf(value)));
+					} else {
+						relationFilter.putObject("term")
+							.put(filterKey.toLowerCase(), String.valueOf(filterValue));
+					}
+				} else if (filterKey.equals(routingField) && isExactValue(filterValue)) {
+					// Exact match on the keyword routing field : only the shard of the value can hold the results
+					bool.withArray("filter").addObject()
+						.putObject("term")
+						.put(filterKey.toLowerCase(), String.valueOf(filterValue));
+				} else if (cft.getFieldType() == CustomFieldTypeEnum.STRING) {
 					queries.addObject()
 						.putObject("wildcard")
 						.put(filterKey.toLowerCase(), String.valueOf(filterValue));
@@ -120,7 +438,15 @@ public class ElasticStorageImpl extends Script implements StorageImpl {
 			}
 		});
 		
-		return json.toString();
+		return json;
+	}
+
+	/**
+	 * @return whether the code is the one of a relationship starting from the CET, whose targets are stored on its documents
+	 */
+	private boolean isRelationOf(String code, CustomEntityTemplate cet) {
+		CustomRelationshipTemplate crt = crtService.findByCode(code);
+		return crt != null && crt.getStartNode() != null && crt.getStartNode().getCode().equals(cet.getCode());
 	}
 
 	@Override
@@ -151,12 +477,17 @@ public class ElasticStorageImpl extends Script implements StorageImpl {
 		var _source = hit.get("_source");
 
 		cfts.forEach((cft) -> {
-			var fieldValue = _source.get(cft.getCode().toLowerCase());
+			var fieldValue = _source.get(FieldNames.lowerCase(cft.getCode()));
 			if (fieldValue != null) {
 				Object convertedValue; 
 				switch (cft.getFieldType()) {
 					case DOUBLE:
-						convertedValue = fieldValue.asDouble();
+						if (fieldValue.isArray()) {
+							// Dense vector
+							convertedValue = JacksonUtil.OBJECT_MAPPER.convertValue(fieldValue, List.class);
+						} else {
+							convertedValue = fieldValue.asDouble();
+						}
 						break;
 					case LONG: 
 						convertedValue = fieldValue.asLong();
@@ -177,10 +508,18 @@ public class ElasticStorageImpl extends Script implements StorageImpl {
 	public Map<String, Object> findById(IStorageConfiguration repository, CustomEntityTemplate cet, String uuid,
 			Map<String, CustomFieldTemplate> cfts, Collection<String> fetchFields, boolean withEntityReferences) {
 			
-		ElasticRestClient client = beginTransaction(repository, 0);
-		var request = client.get("/%s/_doc/%s", cet.getCode().toLowerCase(), uuid);
+		ElasticRestClient client = getClient(repository);
+		String index = cet.getCode().toLowerCase();
+
+		if (getRoutingField(cet) != null) {
+			var hit = findHitById(repository, client, index, uuid, true);
+			LOG.info("Find by id {} = {}", uuid, hit);
+			return hit == null ? null : mapHitToCfts(hit, cfts.values());
+		}
+
+		var request = client.get("/%s/_doc/%s", index, uuid);
 		return client.execute(request, response -> {
-			var responseJson =  JacksonUtil.OBJECT_MAPPER.readTree(response.getEntity().getContent());
+			var responseJson =  client.readTree(response);
 			LOG.info("Find by id {} = {}", uuid, responseJson);
 			return mapHitToCfts(responseJson, cfts.values());
 		}, (e) -> {
@@ -190,54 +529,168 @@ public class ElasticStorageImpl extends Script implements StorageImpl {
 
 	@Override
 	public List<Map<String, Object>> find(StorageQuery query) throws EntityDoesNotExistsException {
-		ElasticRestClient client = beginTransaction(query.getStorageConfiguration(), 0);
+		SearchPage page = findPage(query);
+		// The page may be cached, callers get their own hits
+		return page == null ? null : page.copyHits();
+	}
+
+	/**
+	 * Retrieves a page of hits along with the total number of matching documents, using a single search request. <br>
+	 * The total is exact up to the <code>trackTotalHits</code> setting, and a lower bound beyond it. 
+	 * Pages and totals are kept for a short time, so that a count following a find (or the opposite) 
+	 * does not query elastic again.
+	 * 
+	 * @param query the query, paginated using its pagination configuration
+	 * @return the page, whose hits are unmodifiable as it may be shared with other callers, or null if the search failed
+	 */
+	public SearchPage findPage(StorageQuery query) {
+		IStorageConfiguration conf = query.getStorageConfiguration();
+		ElasticRestClient client = getClient(conf);
+		String index = query.getCet().getCode().toLowerCase();
 		var fieldsTemplates = cftService.findByAppliesTo(query.getCet().getAppliesTo());
 
-		var get = client.get("/%s/_search", query.getCet().getCode().toLowerCase());
-		client.setBody(get, buildSearchRequest(query, fieldsTemplates));
+		var searchRequest = buildSearchRequest(query, fieldsTemplates);
+		String countKey = getCacheKey(index, searchRequest);
 
-		return (List<Map<String, Object>>) client.execute(get, response -> {
-			var mapper = JacksonUtil.OBJECT_MAPPER;
-			var responseJson =  mapper.readTree(response.getEntity().getContent());
-			LOG.info("Search result = " + responseJson);
-			
-			var hits = responseJson.get("hits").get("hits");
+		var pagination = query.getPaginationConfiguration();
+		if (pagination != null) {
+			if (pagination.getFirstRow() != null) {
+				searchRequest.put("from", pagination.getFirstRow());
+			}
+			if (pagination.getNumberOfRows() != null) {
+				searchRequest.put("size", pagination.getNumberOfRows());
+			}
+		}
 
-			return StreamSupport.stream(hits.spliterator(), false)
-				.map(node -> mapHitToCfts(node, fieldsTemplates.values()))
-				.collect(Collectors.toList());
+		String pageKey = getCacheKey(index, searchRequest);
+		var searchCache = searchCaches.computeIfAbsent(conf.getCode(), code -> new ExpiringCache<>(SEARCH_CACHE_SIZE, client.getSettings().getSearchCacheTtl()));
+		SearchPage page = searchCache.get(pageKey);
+		if (page != null) {
+			return page;
+		}
 
-		}, (e) -> {
-			LOG.error("Failed to read response", e);
-		});
+		int trackTotalHits = client.getSettings().getTrackTotalHits();
+		if (trackTotalHits < 0) {
+			searchRequest.put("track_total_hits", true);
+		} else {
+			searchRequest.put("track_total_hits", trackTotalHits);
+		}
+
+		String routing = getRouting(query);
+		var multiSearchBatcher = client.getMultiSearchBatcher();
+		if (multiSearchBatcher != null) {
+			try {
+				var responseJson = multiSearchBatcher.submit(index, routing, searchRequest)
+					.get(client.getSettings().getRequestDeadline(), TimeUnit.MILLISECONDS);
+				page = toSearchPage(responseJson, fieldsTemplates.values());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				LOG.error("Interrupted while waiting for search response", e);
+			} catch (ExecutionException e) {
+				LOG.error("Failed to read response", e.getCause());
+			} catch (TimeoutException e) {
+				LOG.error("No search response after {} ms", client.getSettings().getRequestDeadline());
+			}
+		} else {
+			var get = routing == null ? client.get("/%s/_search", index) : client.get("/%s/_search?routing=%s", index, encode(routing));
+			client.setContent(get, searchRequest);
+
+			page = client.execute(get, response -> {
+				return toSearchPage(client.readTree(response), fieldsTemplates.values());
+			}, (e) -> {
+				LOG.error("Failed to read response", e);
+			});
+		}
+
+		if (page != null) {
+			searchCache.put(pageKey, page);
+			getCountCache(conf, client).put(countKey, page.getTotal());
+		}
+
+		return page;
 	}
 
-	private String getDocBody(CustomEntityInstance cei) {
-		Map<String, Object> body = new HashMap<>();
+	private SearchPage toSearchPage(JsonNode responseJson, Collection<CustomFieldTemplate> fieldsTemplates) {
+		LOG.info("Search result = " + responseJson);
+
+		var hits = responseJson.get("hits");
+		var total = hits.get("total");
+
+		List<Map<String, Object>> results = StreamSupport.stream(hits.get("hits").spliterator(), false)
+			.map(node -> mapHitToCfts(node, fieldsTemplates))
+			.collect(Collectors.toList());
 
-		cei.getValues(storageType())
-			.forEach((key, value) -> {
-				body.put(key.toLowerCase(), value);
+		return new SearchPage(results, total.get("value").asLong(), total.get("relation").asText().equals("eq"));
+	}
+
+	private ExpiringCache<String, Long> getCountCache(IStorageConfiguration conf, ElasticRestClient client) {
+		return countCaches.computeIfAbsent(conf.getCode(), code -> new ExpiringCache<>(SEARCH_CACHE_SIZE, client.getSettings().getSearchCacheTtl()));
+	}
+
+	/**
+	 * The write generation of the index is part of the key, so cached results are not used once the index was modified
+	 */
+	private static String getCacheKey(String index, JsonNode searchRequest) {
+		return index + ":" + WriteGenerations.get(index) + ":" + searchRequest;
+	}
+
+	private DocumentEntity getDocBody(ElasticRestClient client, CustomEntityInstance cei) {
+		return new DocumentEntity(cei.getValues(storageType()), client.getSettings().getWireFormat());
+	}
+
+	/**
+	 * @return the values of the entity, with an explicit null for its empty fields so that a partial update clears them. 
+	 * 		The relation fields of the document are not fields of the entity, a partial update keeps them
+	 */
+	private Map<String, Object> getUpdatedValues(CustomEntityInstance cei) {
+		Map<String, Object> values = new LinkedHashMap<>(cei.getValues(storageType()));
+		if (cei.getFieldTemplates() != null) {
+			cei.getFieldTemplates().keySet().forEach(code -> {
+				if (values.get(code) == null) {
+					values.put(code, NullNode.getInstance());
+				}
 			});
+		}
+		return values;
+	}
 
-		return JacksonUtil.toString(body);
+	/**
+	 * @return the body of a bulk update action, creating the document or updating its fields
+	 */
+	private Map<String, Object> toUpsert(CustomEntityInstance cei) {
+		Map<String, Object> document = new LinkedHashMap<>();
+		getUpdatedValues(cei).forEach((key, value) -> document.put(FieldNames.lowerCase(key), value));
+
+		Map<String, Object> body = new LinkedHashMap<>();
+		body.put("doc", document);
+		body.put("doc_as_upsert", true);
+		return body;
 	}
 
 	@Override
 	public PersistenceActionResult createOrUpdate(Repository repository, IStorageConfiguration conf, CustomEntityInstance cei,
 			Map<String, CustomFieldTemplate> customFieldTemplates, String foundUuid) throws BusinessException {
 		
-		if (this.exists(conf, cei.getCet(), cei.getUuid())) {
+		String index = cei.getCetCode().toLowerCase();
+		String routing = getRouting(cei);
+		rememberRouting(conf, index, cei.getUuid(), routing);
+		var transaction = transactions.get().get(conf.getCode());
+		if (transaction != null) {
+			// The upsert creates or updates the document, no need to check its existence
+			transaction.getWrites().update(index, cei.getUuid(), routing, toUpsert(cei));
+			return new PersistenceActionResult(cei.getUuid());
+		}
+
+		ElasticRestClient client = getClient(conf);
+		if (exists(client, index, cei.getUuid(), routing)) {
 			this.update(repository, conf, cei);
 			return new PersistenceActionResult(cei.getUuid());
 		} else {
-
-			ElasticRestClient client = beginTransaction(conf, 0);
-
-			var put = client.put("/%s/_create/%s", cei.getCetCode().toLowerCase(), cei.getUuid());
-			client.setBody(put, getDocBody(cei));
-			return client.execute(put, response -> {
-				var json = JacksonUtil.OBJECT_MAPPER.readTree(response.getEntity().getContent());
+			var put = client.put("/%s/_create/%s?refresh=%s%s", index, cei.getUuid(), 
+				client.getSettings().getRefreshPolicy().getValue(), routingParameter(routing));
+			client.setBody(put, getDocBody(client, cei));
+			var result = client.execute(put, response -> {
+				var json = client.readTree(response);
 				LOG.info("Create response = {}", json);
 				if (json.get("result").asText().equals("created")) {
 					return new PersistenceActionResult(json.get("_id").asText());
@@ -245,51 +698,290 @@ public class ElasticStorageImpl extends Script implements StorageImpl {
 					throw new PersistenceException("Elastic response : " + json.toString());
 				}
 			}, "Failed to create / update data");
+			WriteGenerations.increment(cei.getCetCode().toLowerCase());
+			return result;
 		}
 	}
 
+	/**
+	 * Relationships are denormalized on the source document : the uuids of the targets are stored 
+	 * in a keyword field named after the relationship. Relation values are not stored.
+	 */
 	@Override
 	public PersistenceActionResult addCRTByUuids(IStorageConfiguration repository, CustomRelationshipTemplate crt,
 			Map<String, Object> relationValues, String sourceUuid, String targetUuid) throws BusinessException {
-		return null;
+		addCRTsByUuids(repository, crt, Map.of(sourceUuid, List.of(targetUuid)));
+		return new PersistenceActionResult(sourceUuid);
+	}
+
+	/**
+	 * Adds many relationships at once. The targets are appended to the source documents through scripted 
+	 * partial updates, sent by batches using the bulk API.
+	 * 
+	 * @param repository      the storage configuration
+	 * @param crt             the relationship template
+	 * @param targetsBySource the target uuids to add, grouped by source uuid
+	 * @throws BusinessException if one of the updates fails
+	 */
+	public void addCRTsByUuids(IStorageConfiguration repository, CustomRelationshipTemplate crt, Map<String, ? extends Collection<String>> targetsBySource) throws BusinessException {
+		ElasticRestClient client = getClient(repository);
+		String index = crt.getStartNode().getCode().toLowerCase();
+		String field = crt.getCode().toLowerCase();
+
+		var transaction = transactions.get().get(repository.getCode());
+
+		// The updates must reach the shards holding the source documents, whose routing keys are not known here
+		Map<String, String> routings = new HashMap<>();
+		if (getRoutingField(crt.getStartNode()) != null) {
+			List<String> sources = new ArrayList<>();
+			for (String source : targetsBySource.keySet()) {
+				String routing = transaction == null ? null : transaction.getRouting(index, source);
+				if (routing == null) {
+					sources.add(source);
+				} else {
+					routings.put(source, routing);
+				}
+			}
+			for (int from = 0; from < sources.size(); from += RELATION_UPDATES_PER_BULK) {
+				findHitsByIds(repository, client, index, sources.subList(from, Math.min(sources.size(), from + RELATION_UPDATES_PER_BULK)), false)
+					.forEach((uuid, hit) -> routings.put(uuid, getRouting(hit)));
+			}
+
+			if (routings.size() < targetsBySource.size()) {
+				var missing = targetsBySource.keySet().stream()
+					.filter(source -> !routings.containsKey(source))
+					.collect(Collectors.toList());
+				throw new BusinessException("Sources of " + crt.getCode() + " not found : " + missing);
+			}
+		}
+
+		if (transaction != null) {
+			for (var entry : targetsBySource.entrySet()) {
+				List<String> targets = new ArrayList<>(entry.getValue());
+				for (int from = 0; from < targets.size(); from += RELATION_TARGETS_PER_UPDATE) {
+					var batch = targets.subList(from, Math.min(targets.size(), from + RELATION_TARGETS_PER_UPDATE));
+					transaction.getWrites().update(index, entry.getKey(), routings.get(entry.getKey()), addRelationScript(field, batch));
+				}
+			}
+			return;
+		}
+
+		RefreshPolicy refreshPolicy = client.getSettings().getRefreshPolicy();
+		var bulkRequest = new ElasticBulkRequest();
+		for (var entry : targetsBySource.entrySet()) {
+			List<String> targets = new ArrayList<>(entry.getValue());
+			for (int from = 0; from < targets.size(); from += RELATION_TARGETS_PER_UPDATE) {
+				var batch = targets.subList(from, Math.min(targets.size(), from + RELATION_TARGETS_PER_UPDATE));
+				bulkRequest.update(index, entry.getKey(), routings.get(entry.getKey()), addRelationScript(field, batch));
+
+				if (bulkRequest.size() >= RELATION_UPDATES_PER_BULK) {
+					client.bulk(bulkRequest, refreshPolicy);
+					bulkRequest.clear();
+				}
+			}
+		}
+
+		if (!bulkRequest.isEmpty()) {
+			client.bulk(bulkRequest, refreshPolicy);
+		}
+		WriteGenerations.increment(index);
+	}
+
+	private static ObjectNode addRelationScript(String field, Collection<String> targets) {
+		var body = JacksonUtil.OBJECT_MAPPER.createObjectNode();
+		var script = body.putObject("script")
+			.put("source", ADD_RELATION_SCRIPT)
+			.put("lang", "painless");
+		var params = script.putObject("params")
+			.put("field", field);
+		var targetsNode = params.putArray("targets");
+		targets.forEach(targetsNode::add);
+		return body;
 	}
 
 	@Override
 	public void update(Repository repository, IStorageConfiguration conf, CustomEntityInstance cei) throws BusinessException {
-		ElasticRestClient client = beginTransaction(conf, 0);
-		var request = client.put("/%s/_doc/%s", cei.getCetCode().toLowerCase(), cei.getUuid());
-		client.setBody(request, getDocBody(cei));
+		String routing = getRouting(cei);
+		rememberRouting(conf, cei.getCetCode().toLowerCase(), cei.getUuid(), routing);
+		var transaction = transactions.get().get(conf.getCode());
+		if (transaction != null) {
+			transaction.getWrites().update(cei.getCetCode().toLowerCase(), cei.getUuid(), routing, toUpsert(cei));
+			return;
+		}
 
-		boolean result = client.execute(request, response -> {
+		// Partial update : the relation fields added to the document by addCRTsByUuids are kept
+		ElasticRestClient client = getClient(conf);
+		var request = client.post("/%s/_update/%s?refresh=%s%s", cei.getCetCode().toLowerCase(), cei.getUuid(), 
+			client.getSettings().getRefreshPolicy().getValue(), routingParameter(routing));
+		client.setBody(request, DocumentEntity.upsert(getUpdatedValues(cei), client.getSettings().getWireFormat()));
+
+		Boolean result = client.execute(request, response -> {
 			JsonNode json = null;
 			try {
-				json = JacksonUtil.OBJECT_MAPPER.readTree(response.getEntity().getContent());
+				json = client.readTree(response);
 			} catch (UnsupportedOperationException | IOException e) {
 				return false;
 			}
 
-			if (json.get("result").asText().equals("updated")) {
-				return true;
-			} else {
-				return false;
-			}
+			// noop when the values did not change
+			String outcome = json.path("result").asText();
+			return outcome.equals("updated") || outcome.equals("noop") || outcome.equals("created");
 		});
 
-		if (!result) {
+		if (!Boolean.TRUE.equals(result)) {
 			throw new BusinessException("Failed to update");
 		}
+		WriteGenerations.increment(cei.getCetCode().toLowerCase());
 	}
 
+	/**
+	 * Binaries are indexed in a separate index, named after the CET with a <code>_binaries</code> suffix, 
+	 * through an ingest-attachment pipeline. The extracted text is available in the <code>attachment.content</code> field. 
+	 * Files are base64 encoded while being streamed, and several files are sent in parallel.
+	 */
 	@Override
 	public void setBinaries(IStorageConfiguration repository, CustomEntityTemplate cet, CustomFieldTemplate cft, String uuid,
 			List<File> binaries) throws BusinessException {
+		ElasticRestClient client = getClient(repository);
+		String index = getBinariesIndex(cet);
+		String field = cft.getCode().toLowerCase();
+
+		createAttachmentPipeline(repository, client);
+		createBinariesIndex(repository, client, index);
+
+		// Remove the binaries previously stored for the field
+		var deleteQuery = JacksonUtil.OBJECT_MAPPER.createObjectNode();
+		var filters = deleteQuery.putObject("query")
+			.putObject("bool")
+			.putArray("filter");
+		filters.addObject().putObject("term").put("entity", uuid);
+		filters.addObject().putObject("term").put("field", field);
+
+		var deleteRequest = client.post("/%s/_delete_by_query?ignore_unavailable=true&refresh=true", index);
+		client.setBody(deleteRequest, deleteQuery.toString());
+		client.execute(deleteRequest, null, "Failed to remove previous binaries of " + uuid);
+
+		if (binaries == null || binaries.isEmpty()) {
+			return;
+		}
 
+		List<CompletableFuture<Void>> ingestions = new ArrayList<>();
+		for (int i = 0; i < binaries.size(); i++) {
+			File binary = binaries.get(i);
+			String id = uuid + "_" + field + "_" + i;
+
+			var metadata = JacksonUtil.OBJECT_MAPPER.createObjectNode()
+				.put("entity", uuid)
+				.put("field", field)
+				.put("filename", binary.getName());
+
+			ingestions.add(CompletableFuture.runAsync(() -> {
+				var request = client.put("/%s/_doc/%s?pipeline=%s", index, id, ATTACHMENT_PIPELINE);
+				client.setBody(request, new AttachmentEntity(binary, metadata));
+				try {
+					client.execute(request, response -> {
+						int status = response.getStatusLine().getStatusCode();
+						if (status >= 300) {
+							throw new PersistenceException("Elastic response : " + client.readTree(response));
+						}
+						return null;
+					}, "Failed to ingest binary " + binary.getName());
+				} catch (BusinessException e) {
+					throw new CompletionException(e);
+				}
+			}, BINARIES_EXECUTOR));
+		}
+
+		try {
+			CompletableFuture.allOf(ingestions.toArray(new CompletableFuture[0])).join();
+		} catch (CompletionException e) {
+			throw new BusinessException("Failed to store binaries of " + uuid, e.getCause());
+		}
+	}
+
+	private static String getBinariesIndex(CustomEntityTemplate cet) {
+		return cet.getCode().toLowerCase() + "_binaries";
+	}
+
+	/**
+	 * Creates the binaries index with keyword mappings, so that the binaries of an entity can be found by exact uuid and field code
+	 */
+	private void createBinariesIndex(IStorageConfiguration repository, ElasticRestClient client, String index) throws BusinessException {
+		String key = repository.getCode() + ":" + index;
+		if (binariesIndices.contains(key)) {
+			return;
+		}
+
+		var body = JacksonUtil.OBJECT_MAPPER.createObjectNode();
+		var properties = body.putObject("mappings").putObject("properties");
+		properties.putObject("entity").put("type", "keyword");
+		properties.putObject("field").put("type", "keyword");
+		properties.putObject("filename").put("type", "keyword");
+
+		var request = client.put("/%s", index);
+		client.setBody(request, body.toString());
+		client.execute(request, response -> {
+			int status = response.getStatusLine().getStatusCode();
+			if (status >= 300 && !client.readTree(response).path("error").path("type").asText().equals("resource_already_exists_exception")) {
+				throw new PersistenceException("Failed to create index " + index + ", status " + status);
+			}
+			return null;
+		}, "Failed to create index " + index);
+		binariesIndices.add(key);
+	}
+
+	private void createAttachmentPipeline(IStorageConfiguration repository, ElasticRestClient client) throws BusinessException {
+		if (attachmentPipelines.contains(repository.getCode())) {
+			return;
+		}
+
+		var pipeline = JacksonUtil.OBJECT_MAPPER.createObjectNode();
+		pipeline.put("description", "Extracts the text of meveo binaries");
+		pipeline.putArray("processors")
+			.addObject()
+			.putObject("attachment")
+			.put("field", "data")
+			.put("target_field", "attachment")
+			.put("indexed_chars", -1)
+			.put("remove_binary", true);
+
+		var request = client.put("/_ingest/pipeline/%s", ATTACHMENT_PIPELINE);
+		client.setBody(request, pipeline.toString());
+		int status = client.execute(request, response -> response.getStatusLine().getStatusCode(), "Failed to create attachment pipeline");
+		if (status >= 300) {
+			throw new BusinessException("Failed to create attachment pipeline, status " + status);
+		}
+		attachmentPipelines.add(repository.getCode());
 	}
 
 	@Override
 	public void remove(IStorageConfiguration repository, CustomEntityTemplate cet, String uuid) throws BusinessException {
-		ElasticRestClient client = beginTransaction(repository, 0);
-		client.delete("/%s/_doc/%s", cet.getCode().toLowerCase(), uuid);
+		ElasticRestClient client = getClient(repository);
+		String index = cet.getCode().toLowerCase();
+
+		var transaction = transactions.get().get(repository.getCode());
+
+		String routing = null;
+		if (getRoutingField(cet) != null) {
+			// Written earlier in the transaction : not indexed yet, but its routing key is known
+			routing = transaction == null ? null : transaction.getRouting(index, uuid);
+			if (routing == null) {
+				var hit = findHitById(repository, client, index, uuid, false);
+				if (hit == null) {
+					LOG.warn("Entity {} {} not found, nothing to remove", cet.getCode(), uuid);
+					return;
+				}
+				routing = getRouting(hit);
+			}
+		}
+
+		if (transaction != null) {
+			transaction.getWrites().delete(index, uuid, routing);
+			return;
+		}
+
+		client.delete("/%s/_doc/%s?refresh=%s%s", index, uuid, client.getSettings().getRefreshPolicy().getValue(), routingParameter(routing));
+		WriteGenerations.increment(index);
 	}
 
 	@Override
@@ -302,20 +994,18 @@ public class ElasticStorageImpl extends Script implements StorageImpl {
 		query.setPaginationConfiguration(paginationConfiguration);
 		query.setStorageConfiguration(repository);
 
-		ElasticRestClient client = beginTransaction(repository, 0);
+		ElasticRestClient client = getClient(repository);
 		var fieldsTemplates = cftService.findByAppliesTo(query.getCet().getAppliesTo());
+		String index = cet.getCode().toLowerCase();
 
-		var get = client.get("/%s/_count", query.getCet().getCode().toLowerCase());
-		client.setBody(get, buildSearchRequest(query, fieldsTemplates));
+		Long total = getCountCache(repository, client).get(getCacheKey(index, buildSearchRequest(query, fieldsTemplates)));
+		if (total != null) {
+			return total.intValue();
+		}
 
-		return client.execute(get, response -> {
-			var mapper = JacksonUtil.OBJECT_MAPPER;
-			var responseJson =  mapper.readTree(response.getEntity().getContent());
-			LOG.info("Count result = {}", responseJson);
-			return responseJson.get("count").asInt();
-		}, e -> { 
-			LOG.error("Failed to read response", e);
-		});
+		// Also retrieves the requested page, which will be used by the following find
+		SearchPage page = findPage(query);
+		return page == null ? null : (int) page.getTotal();
 	}
 
 	@Override
@@ -323,8 +1013,16 @@ public class ElasticStorageImpl extends Script implements StorageImpl {
 		for (var repository : cet.getRepositories()) {
 			repository.getStorageConfigurations(storageType())
 			.forEach(conf -> {
-				ElasticRestClient client = beginTransaction(conf, 0);
+				ElasticRestClient client = getClient(conf);
 				var request = client.put("/%s", cet.getCode().toLowerCase());
+				if (getRoutingField(cet) != null) {
+					// Reject the writes missing the routing key, which would land on the wrong shard
+					var settings = JacksonUtil.OBJECT_MAPPER.createObjectNode();
+					settings.putObject("mappings")
+						.putObject("_routing")
+						.put("required", true);
+					client.setBody(request, settings.toString());
+				}
 				client.execute(request, null);
 			});
 		}
@@ -335,7 +1033,7 @@ public class ElasticStorageImpl extends Script implements StorageImpl {
 		for (var repository : cet.getRepositories()) {
 			repository.getStorageConfigurations(storageType())
 				.forEach(conf -> {
-					ElasticRestClient client = beginTransaction(conf, 0);
+					ElasticRestClient client = getClient(conf);
 					int result = client.delete("/%s", cet.getCode().toLowerCase());
 					if (result == 404) {
 						LOG.info("Index cet {} already deleted", cet.getCode().toLowerCase());
@@ -351,7 +1049,22 @@ public class ElasticStorageImpl extends Script implements StorageImpl {
 
 	@Override
 	public void crtCreated(CustomRelationshipTemplate crt) throws BusinessException {
-		//NOOP
+		// Declare the field holding the target uuids on the source index
+		var startNode = crt.getStartNode();
+		for (var repository : startNode.getRepositories()) {
+			for (var conf : repository.getStorageConfigurations(storageType())) {
+				ElasticRestClient client = getClient(conf);
+
+				Map<String, Object> mapping = new HashMap<>();
+				mapping.put("properties", 
+					Map.of(crt.getCode().toLowerCase(), Map.of("type", "keyword"))
+				);
+
+				var request = client.put("/%s/_mapping", startNode.getCode().toLowerCase());
+				client.setBody(request, JacksonUtil.toString(mapping));
+				client.execute(request, null, "Failed to create mapping for relationship " + crt.getCode());
+			}
+		}
 	}
 
 	@Override
@@ -359,11 +1072,16 @@ public class ElasticStorageImpl extends Script implements StorageImpl {
 		for (var repository : template.getRepositories()) {
 			repository.getStorageConfigurations(storageType())
 				.forEach(conf -> {
-					ElasticRestClient client = beginTransaction(conf, 0);
+					ElasticRestClient client = getClient(conf);
+
+					// The routing field is matched exactly, so that searches on a value can be routed to its shard
+					boolean routingField = template instanceof CustomEntityTemplate 
+						&& cft.getCode().equals(getRoutingField((CustomEntityTemplate) template));
+					Map<String, Object> property = routingField ? Map.of("type", "keyword") : getPropertyFromCft(cft);
 
 					Map<String, Object> mapping = new HashMap<>();
 					mapping.put("properties", 
-						Map.of(cft.getCode().toLowerCase(), getPropertyFromCft(cft))
+						Map.of(cft.getCode().toLowerCase(), property)
 					);
 
 					var request = client.put("/%s/_mapping", template.getCode().toLowerCase());
@@ -404,28 +1122,119 @@ public class ElasticStorageImpl extends Script implements StorageImpl {
 		//NOOP
 	}
 
+	/**
+	 * Starts buffering the writes made on the storage configuration by the current thread, until the transaction is committed. 
+	 * Meveo begins a transaction at each nesting level, nested calls join the current transaction.
+	 * 
+	 * @param stackedCalls nesting level of the call, 1 (or less) for the outermost one
+	 */
 	@SuppressWarnings("unchecked")
 	@Override
 	public <T> T beginTransaction(IStorageConfiguration repository, int stackedCalls) {
-		return (T) clients.computeIfAbsent(repository.getCode(), code -> {
+		ElasticRestClient client = getClient(repository);
+		var threadTransactions = transactions.get();
+		if (stackedCalls <= 1) {
+			var previous = threadTransactions.put(repository.getCode(), new ElasticTransaction(client.getSettings().getRefreshPolicy()));
+			if (previous != null && !previous.getWrites().isEmpty()) {
+				LOG.warn("Discarding {} writes of a transaction on {} that was never committed", previous.getWrites().size(), repository.getCode());
+			}
+		} else {
+			threadTransactions.computeIfAbsent(repository.getCode(), code -> new ElasticTransaction(client.getSettings().getRefreshPolicy()));
+		}
+		return (T) client;
+	}
+
+	/**
+	 * @return the compression, concurrency and queueing counters of the client of the storage configuration, e.g. to be exposed by a script
+	 */
+	public ElasticClientMetrics getMetrics(IStorageConfiguration repository) {
+		return getClient(repository).getMetrics();
+	}
+
+	private ElasticRestClient getClient(IStorageConfiguration repository) {
+		return clients.computeIfAbsent(repository.getCode(), code -> {
 			String elasticHost = repository.getHostname();
 			int elasticPort = repository.getPort();
 			String elasticUsername = repository.getCredential().getUsername();
 			String elasticPassword = repository.getCredential().getPassword();
-			
+			ElasticClientSettings settings = ElasticClientSettings.load(paramBeanFactory.getInstance(), code);
 
-			return new ElasticRestClient(repository.getProtocol() + "://" + elasticHost, elasticPort, elasticUsername, elasticPassword);
+			return new ElasticRestClient(repository.getProtocol() + "://" + elasticHost, elasticPort, elasticUsername, elasticPassword, settings);
 		});
 	}
 
+	/**
+	 * Sends the writes of the current transaction as a single bulk request. Meveo only commits the outermost transaction.
+	 */
 	@Override
 	public void commitTransaction(IStorageConfiguration repository) {
-		// NOOP
+		commitTransaction(repository, null);
 	}
 
+	/**
+	 * @param refreshPolicy refresh policy of the bulk request, the one of the transaction if null
+	 * @see #commitTransaction(IStorageConfiguration)
+	 */
+	public void commitTransaction(IStorageConfiguration repository, RefreshPolicy refreshPolicy) {
+		var transaction = transactions.get().get(repository.getCode());
+		if (transaction == null) {
+			return;
+		}
+
+		var writes = transaction.getWrites();
+		try {
+			if (!writes.isEmpty()) {
+				getClient(repository).bulk(writes, refreshPolicy != null ? refreshPolicy : transaction.getRefreshPolicy());
+			}
+		} catch (BusinessException e) {
+			throw new PersistenceException("Failed to commit transaction on " + repository.getCode(), e);
+		} finally {
+			endTransaction(repository.getCode());
+			writes.getOperations().stream()
+				.map(ElasticBulkRequest.Operation::getIndex)
+				.distinct()
+				.forEach(WriteGenerations::increment);
+		}
+	}
+
+	/**
+	 * Discards the writes of the current thread, once the outermost transaction is rolled back
+	 * 
+	 * @param stackedCalls nesting level of the call, 1 (or less) for the outermost one
+	 */
 	@Override
 	public void rollbackTransaction(int stackedCalls) {
-		// NOOP
+		if (stackedCalls <= 1) {
+			transactions.remove();
+		}
+	}
+
+	/**
+	 * Discards the writes made on the storage configuration by the current thread
+	 */
+	public void rollbackTransaction(IStorageConfiguration repository) {
+		endTransaction(repository.getCode());
+	}
+
+	/**
+	 * Forgets the transaction, and the map of the thread once it has no transaction left, as threads are pooled
+	 */
+	private void endTransaction(String code) {
+		var threadTransactions = transactions.get();
+		threadTransactions.remove(code);
+		if (threadTransactions.isEmpty()) {
+			transactions.remove();
+		}
+	}
+
+	/**
+	 * Sets the refresh policy used when committing the current transaction
+	 */
+	public void setRefreshPolicy(IStorageConfiguration repository, RefreshPolicy refreshPolicy) {
+		var transaction = transactions.get().get(repository.getCode());
+		if (transaction != null) {
+			transaction.setRefreshPolicy(refreshPolicy);
+		}
 	}
 
 	@Override
@@ -449,6 +1258,15 @@ public class ElasticStorageImpl extends Script implements StorageImpl {
 				// search_as_you_type
 				property.put("type", "search_as_you_type");
 				break;
+			case DOUBLE:
+				// dense_vector, for a list whose max value is the number of dimensions
+				if (cft.getStorageType() == CustomFieldStorageTypeEnum.LIST && cft.getMaxValue() != null) {
+					property.put("type", "dense_vector");
+					property.put("dims", cft.getMaxValue());
+					property.put("index", true);
+					property.put("similarity", "cosine");
+				}
+				break;
 			default:
 				break;
 		}